@@ -19,12 +19,18 @@ import java.io.InputStreamReader;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static ml.konstanius.minecicd.Messages.*;
-import static ml.konstanius.minecicd.MineCICD.busyLock;
 import static ml.konstanius.minecicd.MineCICD.plugin;
 
 public class BaseCommand implements CommandExecutor {
+    // subcommands that write to the repository, the index, the working tree or the server, run one at a time on the
+    // OperationQueue. status and diff fetch and stage to compare, so they are queued as well
+    private static final Set<String> QUEUED = new HashSet<>(Arrays.asList(
+            "add", "remove", "pull", "push", "reset", "revert", "rollback", "reload", "script", "resolve", "status", "diff"));
+
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
         String subCommand;
@@ -60,12 +66,7 @@ public class BaseCommand implements CommandExecutor {
             ((Player) sender).closeInventory();
         }
 
-        if (busyLock) {
-            sender.sendMessage(getRichMessage("busy", true));
-            return true;
-        }
-
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+        Runnable operation = () -> {
             switch (subCommand) {
                 case "add": {
                     if (args.length != 2) {
@@ -405,7 +406,7 @@ public class BaseCommand implements CommandExecutor {
                     int page;
                     try {
                         page = Integer.parseInt(arg);
-                        try (Git git = Git.open(new File("."))) {
+                        try (Git git = RepositoryManager.git()) {
                             Iterable<RevCommit> allCommits = git.log().call();
                             List<RevCommit> list = new ArrayList<>();
                             for (RevCommit commit : allCommits) {
@@ -474,7 +475,7 @@ public class BaseCommand implements CommandExecutor {
 
                             RevCommit commit = GitUtils.getCommit(arg);
 
-                            try (Git git = Git.open(new File("."))) {
+                            try (Git git = RepositoryManager.git()) {
                                 PersonIdent authorIdent = commit.getAuthorIdent();
                                 String author = authorIdent.getName();
                                 Date date = authorIdent.getWhen();
@@ -571,7 +572,7 @@ public class BaseCommand implements CommandExecutor {
                     }
 
                     ArrayList<String> changes;
-                    try (Git git = Git.open(new File("."))) {
+                    try (Git git = RepositoryManager.git()) {
                         if (args[1].equalsIgnoreCase("local")) {
                             Set<String> localChanges = GitUtils.getLocalChanges();
                             changes = new ArrayList<>(localChanges);
@@ -634,8 +635,12 @@ public class BaseCommand implements CommandExecutor {
 
                     int localChanges = GitUtils.getLocalChanges().size();
                     int remoteChanges;
-                    try (Git git = Git.open(new File("."))) {
-                        remoteChanges = GitUtils.getRemoteChanges(git).size();
+                    try (Git git = RepositoryManager.git()) {
+                        if (PreFetchScheduler.isFresh()) {
+                            remoteChanges = GitUtils.getFetchedChanges(git).size();
+                        } else {
+                            remoteChanges = GitUtils.getRemoteChanges(git).size();
+                        }
                     } catch (Exception e) {
                         MineCICD.logError(e);
                         remoteChanges = -1;
@@ -649,6 +654,8 @@ public class BaseCommand implements CommandExecutor {
                         put("webhook-address", webHookAddress);
                         put("local-changes", String.valueOf(localChanges));
                         put("remote-changes", finalRemoteChanges == -1 ? "N/A" : String.valueOf(finalRemoteChanges));
+                        put("pre-fetch", PreFetchScheduler.getLag());
+                        put("queue-depth", String.valueOf(OperationQueue.getQueueDepth()));
                     }}));
                     break;
                 }
@@ -671,7 +678,7 @@ public class BaseCommand implements CommandExecutor {
                         script = script.substring(0, script.length() - 3);
                     }
                     try {
-                        Script.run(script);
+                        Script.run(script, null);
                     } catch (Exception e) {
                         MineCICD.logError(e);
                         sender.sendMessage(getRichMessage("script-failed", true, new HashMap<String, String>() {{
@@ -721,7 +728,7 @@ public class BaseCommand implements CommandExecutor {
                             break;
                         }
                         case "reset-local-changes": {
-                            try (Git git = Git.open(new File("."))) {
+                            try (Git git = RepositoryManager.git()) {
                                 RevCommit head = git.log().setMaxCount(1).call().iterator().next();
                                 GitUtils.reset(head.getName());
 
@@ -751,8 +758,47 @@ public class BaseCommand implements CommandExecutor {
                     break;
                 }
             }
+        };
+
+        CompletableFuture<Void> result;
+        if (QUEUED.contains(subCommand)) {
+            if (OperationQueue.isBusy()) {
+                int position = OperationQueue.getQueueDepth() + 1;
+                sender.sendMessage(getRichMessage("queued", true, new HashMap<String, String>() {{
+                    put("position", String.valueOf(position));
+                }}));
+            }
+            result = OperationQueue.submit(getPriority(subCommand), subCommand, operation);
+        } else {
+            // read-only commands (help, log) never wait for the queue
+            result = CompletableFuture.runAsync(operation, task -> Bukkit.getScheduler().runTaskAsynchronously(plugin, task));
+        }
+
+        result.whenComplete((ignored, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                sender.sendMessage(getRichMessage("operation-failed", true, new HashMap<String, String>() {{
+                    put("error", cause.getMessage());
+                }}));
+            }
         });
 
         return true;
     }
+
+    private static OperationQueue.Priority getPriority(String subCommand) {
+        switch (subCommand) {
+            case "status":
+            case "diff":
+                return OperationQueue.Priority.QUERY;
+            case "pull":
+                return OperationQueue.Priority.MANUAL_PULL;
+            case "push":
+                return OperationQueue.Priority.PUSH;
+            case "script":
+                return OperationQueue.Priority.SCRIPT;
+            default:
+                return OperationQueue.Priority.COMMAND;
+        }
+    }
 }
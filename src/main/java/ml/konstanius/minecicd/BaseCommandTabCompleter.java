@@ -176,7 +176,7 @@ public class BaseCommandTabCompleter implements TabCompleter {
                 return returnable;
             }
             case "log": {
-                try (Git git = Git.open(new File("."))) {
+                try (Git git = RepositoryManager.git()) {
                     ArrayList<String> list = new ArrayList<>();
 
                     Iterable<RevCommit> commits = git.log().call();
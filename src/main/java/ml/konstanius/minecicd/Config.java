@@ -1,5 +1,7 @@
 package ml.konstanius.minecicd;
 
+import java.util.List;
+
 public abstract class Config {
     public static String getString(String path) {
         return MineCICD.config.getString(path);
@@ -13,6 +15,10 @@ public abstract class Config {
         return MineCICD.config.getBoolean(path);
     }
 
+    public static List<String> getStringList(String path) {
+        return MineCICD.config.getStringList(path);
+    }
+
     public static void set(String path, Object value) {
         MineCICD.config.set(path, value);
         save();
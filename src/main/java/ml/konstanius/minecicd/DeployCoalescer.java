@@ -0,0 +1,69 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import static ml.konstanius.minecicd.MineCICD.log;
+
+/**
+ * Collapses bursts of deployment triggers into a single deployment of the newest tip.
+ * <p>
+ * - The first trigger opens a window of webhooks.debounce-ms, all further triggers until the deployment
+ * actually starts are absorbed by it<br>
+ * - Triggers arriving while a deployment runs schedule exactly one follow-up deployment<br>
+ * - Redelivered webhooks (same delivery ID) are dropped, the most recent IDs are remembered
+ */
+public abstract class DeployCoalescer {
+    private static final int MAX_REMEMBERED_DELIVERIES = 256;
+
+    private static final Map<String, Boolean> seenDeliveries = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_REMEMBERED_DELIVERIES;
+        }
+    };
+    private static boolean pending = false;
+
+    /**
+     * Requests a deployment.
+     *
+     * @param deliveryId Unique ID of the webhook delivery, or null if the trigger has none
+     * @return false if the delivery was a duplicate and got dropped
+     */
+    public static synchronized boolean request(String deliveryId) {
+        if (deliveryId != null && !deliveryId.isEmpty()) {
+            if (seenDeliveries.containsKey(deliveryId)) {
+                log("Dropping duplicate webhook delivery " + deliveryId, Level.INFO);
+                return false;
+            }
+            seenDeliveries.put(deliveryId, Boolean.TRUE);
+        }
+
+        if (pending) {
+            log("Deployment already pending, merging trigger into it", Level.INFO);
+            return true;
+        }
+        pending = true;
+
+        long ticks = Math.max(1, (Math.max(0, Config.getInt("webhooks.debounce-ms")) + 49) / 50);
+        Bukkit.getScheduler().runTaskLaterAsynchronously(MineCICD.plugin, () ->
+                OperationQueue.submit(OperationQueue.Priority.WEBHOOK_DEPLOY, "deploy", () -> {
+                    // triggers from here on need a new deployment, as this one may already miss their commits
+                    synchronized (DeployCoalescer.class) {
+                        pending = false;
+                    }
+                    WebhookHandler.deploy();
+                }).whenComplete((result, e) -> {
+                    if (e != null) {
+                        synchronized (DeployCoalescer.class) {
+                            pending = false;
+                        }
+                        log("Deployment could not be run: " + e.getMessage(), Level.WARNING);
+                    }
+                }), ticks);
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+
+import static ml.konstanius.minecicd.MineCICD.log;
+
+/**
+ * The CICD directives of all commits of one deployment, merged into one plan.
+ * <p>
+ * - Commits are read oldest first, commands and scripts keep that order<br>
+ * - Every plugin is reloaded at most once<br>
+ * - A restart absorbs global and individual reloads, a global reload absorbs individual reloads<br>
+ * - Optionally, plugins whose data folder changed are reloaded automatically ({@link #addChangedPaths(List)})
+ */
+public class DeploymentPlan {
+    public final List<String> commands = new ArrayList<>();
+    public final List<String> scripts = new ArrayList<>();
+    public final LinkedHashSet<String> reloads = new LinkedHashSet<>();
+    public final LinkedHashMap<String, List<String>> reloadCommands = new LinkedHashMap<>();
+    public boolean globalReload = false;
+    public boolean restart = false;
+    public int commitCount = 0;
+
+    /**
+     * Builds the plan from all commits reachable from newHead but not from oldHead.
+     * If oldHead is null (initial pull), only newHead itself is considered.
+     */
+    public static DeploymentPlan fromRange(ObjectId oldHead, ObjectId newHead) throws IOException {
+        DeploymentPlan plan = new DeploymentPlan();
+        if (newHead == null || newHead.equals(oldHead)) {
+            return plan;
+        }
+
+        RepositoryManager.withRevWalk(walk -> {
+            if (oldHead == null) {
+                plan.parse(walk.parseCommit(newHead).getFullMessage());
+                return null;
+            }
+
+            walk.sort(RevSort.TOPO);
+            walk.sort(RevSort.REVERSE, true);
+            walk.markStart(walk.parseCommit(newHead));
+            walk.markUninteresting(walk.parseCommit(oldHead));
+            for (RevCommit commit : walk) {
+                plan.parse(commit.getFullMessage());
+            }
+            return null;
+        });
+
+        plan.normalize();
+        return plan;
+    }
+
+    private void parse(String message) {
+        commitCount++;
+
+        boolean allowIndividualReload = Config.getBoolean("webhooks.allow-individual-reload");
+        boolean allowGlobalReload = Config.getBoolean("webhooks.allow-global-reload");
+        boolean allowRestart = Config.getBoolean("webhooks.allow-restart");
+
+        for (String line : message.split("\n")) {
+            if (!line.startsWith("CICD")) continue;
+
+            String command = line.substring(4).trim();
+            if (command.startsWith("reload") && allowIndividualReload) {
+                String plugin = command.substring(7).trim();
+                if (!plugin.isEmpty() && reloads.stream().noneMatch(plugin::equalsIgnoreCase)) {
+                    reloads.add(plugin);
+                }
+            } else if (command.equals("global-reload")) {
+                globalReload |= allowGlobalReload;
+            } else if (command.equals("restart")) {
+                restart |= allowRestart;
+            } else if (command.startsWith("run")) {
+                commands.add(command.substring(4).trim());
+            } else if (command.startsWith("script")) {
+                scripts.add(command.substring(7).trim());
+            } else {
+                log("Unknown command in CICD commit message " + command, Level.WARNING);
+            }
+        }
+    }
+
+    /**
+     * Adds a reload for every plugin whose data folder (plugins/&lt;folder&gt;/...) was changed by the deployment.
+     * Plugins with commands configured in auto-reload.commands run those instead of a PlugMan reload.
+     */
+    public void addChangedPaths(List<DiffEntry> diffs) {
+        if (restart || globalReload) {
+            return;
+        }
+
+        Map<String, Plugin> pluginsByDataFolder = new HashMap<>();
+        for (Plugin plugin : Bukkit.getPluginManager().getPlugins()) {
+            pluginsByDataFolder.put(plugin.getDataFolder().getName().toLowerCase(Locale.ROOT), plugin);
+        }
+
+        boolean allowIndividualReload = Config.getBoolean("webhooks.allow-individual-reload");
+        for (DiffEntry diff : diffs) {
+            for (String path : new String[]{diff.getOldPath(), diff.getNewPath()}) {
+                if (!path.startsWith("plugins/")) continue;
+
+                // files directly in plugins/ (jars) are not part of any data folder
+                int slash = path.indexOf('/', "plugins/".length());
+                if (slash == -1) continue;
+
+                String folder = path.substring("plugins/".length(), slash).toLowerCase(Locale.ROOT);
+                Plugin plugin = pluginsByDataFolder.get(folder);
+                if (plugin == null || plugin == MineCICD.plugin) continue;
+
+                String name = plugin.getName();
+                if (reloadCommands.containsKey(name) || reloads.stream().anyMatch(name::equalsIgnoreCase)) continue;
+
+                List<String> commands = Config.getStringList("auto-reload.commands." + name);
+                if (commands != null && !commands.isEmpty()) {
+                    reloadCommands.put(name, commands);
+                } else if (allowIndividualReload) {
+                    reloads.add(name);
+                }
+            }
+        }
+    }
+
+    private void normalize() {
+        if (restart) {
+            globalReload = false;
+        }
+        if (restart || globalReload) {
+            reloads.clear();
+            reloadCommands.clear();
+        }
+    }
+}
@@ -1,17 +1,26 @@
 package ml.konstanius.minecicd;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Functionality documentation:
@@ -19,9 +28,15 @@ import java.util.*;
  * - Uses Git native filters, clean and smudge<br>
  * - .gitattributes file is used to specify the filter associated with each file<br>
  * - .git/config file is used to specify the individual "minecicd-replace.exe ..." commands for each filter<br>
+ * - MineCICD itself runs the filters in-process through {@link SecretFilter}, the commands are only used by the git command line<br>
  * - secrets cannot contain the single quote character (" ' ")<br>
  * - each file can only have one filter, but each sed command may replace multiple placeholders<br>
  * - the name of the filter in the .git/config and .gitattributes files will be the same as the relative file path that it is applied to<br>
+ * - only filters whose secrets changed are rewritten, the secrets applied last are kept in .git/minecicd-secrets.yml<br>
+ * - that state file only holds a hash of the secrets and their identifiers per file, never the values<br>
+ * - working tree files whose secrets changed are rewritten with the new secrets, unless they have other local changes,
+ * i.e. unless they differ from their index blob in more than the values of its placeholders<br>
+ * - per-server variables from variables.yml are added as secrets of their template files, see {@link ServerVariables}<br>
  * <p>
  * Each secret has the following:
  * - A unique identifier, which is the same as its {{identifier}} placeholder will be<br>
@@ -29,9 +44,24 @@ import java.util.*;
  * - A secret that it will replace in the file
  */
 public class GitSecret {
+    private static final String STATE_FILE = "minecicd-secrets.yml";
+    private static Boolean sedInstalled = null;
+
+    /**
+     * What was applied to one file last time, without the secret values.
+     */
+    private static class AppliedSecrets {
+        private final String hash;
+        private final List<String> identifiers;
+
+        private AppliedSecrets(String hash, List<String> identifiers) {
+            this.hash = hash;
+            this.identifiers = identifiers;
+        }
+    }
+
     public static HashMap<String, ArrayList<GitSecret>> readFromSecretsStore() throws IOException, InvalidConfigurationException {
         File secretsFile = new File(".", "secrets.yml");
-        HashMap<String, ArrayList<GitSecret>> secrets = new HashMap<>();
         if (!secretsFile.exists()) {
             Files.write(secretsFile.toPath(), (
                     "1:\n" +
@@ -44,6 +74,11 @@ public class GitSecret {
             ).getBytes());
         }
 
+        return read(secretsFile);
+    }
+
+    private static HashMap<String, ArrayList<GitSecret>> read(File secretsFile) throws IOException, InvalidConfigurationException {
+        HashMap<String, ArrayList<GitSecret>> secrets = new HashMap<>();
         FileConfiguration secretsConfig = new YamlConfiguration();
         secretsConfig.load(secretsFile);
 
@@ -93,93 +128,84 @@ public class GitSecret {
     }
 
     public static void configureGitSecretFiltering(HashMap<String, ArrayList<GitSecret>> secrets) throws IOException, InterruptedException {
-        File gitConfigFile = new File(new File(".", ".git"), "config");
+        SecretFilter.register(secrets);
+
+        File gitDir = new File(".", ".git");
+        File gitConfigFile = new File(gitDir, "config");
         if (!GitUtils.activeRepoExists()) {
             return;
         }
 
-        File gitAttributesFile = new File(".", ".gitattributes");
-        if (gitAttributesFile.exists()) {
-            FileUtils.deleteQuietly(gitAttributesFile);
+        TreeMap<String, ArrayList<GitSecret>> filtered = new TreeMap<>();
+        for (Map.Entry<String, ArrayList<GitSecret>> entry : secrets.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                filtered.put(entry.getKey(), entry.getValue());
+            }
         }
 
-        StringBuilder gitAttributesContent = new StringBuilder();
-        for (String filePath : secrets.keySet()) {
-            gitAttributesContent.append(filePath).append(" filter=").append(filePath).append("\n");
+        // the secrets applied last time, to find the files whose secrets changed
+        File stateFile = new File(gitDir, STATE_FILE);
+        Map<String, AppliedSecrets> applied = null;
+        if (stateFile.exists()) {
+            try {
+                applied = readState(stateFile);
+            } catch (InvalidConfigurationException e) {
+                MineCICD.log("Ignoring unreadable " + stateFile.getPath() + ", secrets will not be re-applied to existing files", Level.WARNING);
+            }
         }
-        Files.write(gitAttributesFile.toPath(), gitAttributesContent.toString().getBytes());
 
-        ArrayList<String> gitConfigLines = new ArrayList<>(Files.readAllLines(gitConfigFile.toPath()));
-        boolean inFilterSection = false;
-        for (int i = 0; i < gitConfigLines.size(); i++) {
-            String line = gitConfigLines.get(i);
-            if (line.contains("[filter")) {
-                inFilterSection = true;
-            } else if (inFilterSection && line.contains("[")) {
-                inFilterSection = false;
-            }
-            if (inFilterSection) {
-                gitConfigLines.remove(i);
-                i--;
-            }
+        File gitAttributesFile = new File(".", ".gitattributes");
+        StringBuilder gitAttributesContent = new StringBuilder();
+        for (String filePath : filtered.keySet()) {
+            gitAttributesContent.append(filePath).append(" filter=").append(filePath).append("\n");
         }
+        writeIfChanged(gitAttributesFile, gitAttributesContent.toString().getBytes());
 
-        // Check if sed is installed
-        boolean sedInstalled = false;
-        if (!SystemUtils.IS_OS_WINDOWS) {
-            try {
-                Process process = Runtime.getRuntime().exec("which sed");
-                process.waitFor();
-                sedInstalled = process.exitValue() == 0;
-            } catch (Exception ignored) {
-                // Probably barebones Linux in Docker -> No which, no sed
-            }
+        boolean sedInstalled = isSedInstalled();
+        Map<String, List<String>> sections = new LinkedHashMap<>();
+        for (Map.Entry<String, ArrayList<GitSecret>> entry : filtered.entrySet()) {
+            sections.put(entry.getKey(), filterSection(entry.getKey(), entry.getValue(), sedInstalled));
         }
 
-        for (String filePath : secrets.keySet()) {
-            if (secrets.get(filePath).isEmpty()) {
+        // keep unchanged filter sections as they are, replace changed ones in place, drop removed ones, append new ones
+        List<String> gitConfigLines = Files.readAllLines(gitConfigFile.toPath());
+        List<String> newGitConfigLines = new ArrayList<>();
+        Set<String> written = new HashSet<>();
+        for (int i = 0; i < gitConfigLines.size(); i++) {
+            String line = gitConfigLines.get(i);
+            if (!line.trim().startsWith("[filter")) {
+                newGitConfigLines.add(line);
                 continue;
             }
 
-            gitConfigLines.add("[filter \"" + filePath + "\"]");
-
-            StringBuilder cleanCommand = new StringBuilder("\tclean = ");
-            StringBuilder smudgeCommand = new StringBuilder("\tsmudge = ");
-            if (SystemUtils.IS_OS_WINDOWS) {
-                cleanCommand.append(".\\\\plugins\\\\MineCICD\\\\tools\\\\windows-replace.exe");
-                smudgeCommand.append(".\\\\plugins\\\\MineCICD\\\\tools\\\\windows-replace.exe");
-            } else {
-                if (sedInstalled) {
-                    cleanCommand.append(" sed");
-                    smudgeCommand.append(" sed");
-                } else {
-                    cleanCommand.append(" ./plugins/MineCICD/tools/linux-replace.exe");
-                    smudgeCommand.append(" ./plugins/MineCICD/tools/linux-replace.exe");
-                }
+            int end = i + 1;
+            while (end < gitConfigLines.size() && !gitConfigLines.get(end).trim().startsWith("[")) {
+                end++;
             }
-
-            if (!sedInstalled) {
-                for (GitSecret secret : secrets.get(filePath)) {
-                    String base64Secret = Base64.getEncoder().encodeToString(secret.secret.getBytes());
-                    String base64Identifier = Base64.getEncoder().encodeToString(("{{" + secret.identifier + "}}").getBytes());
-
-                    cleanCommand.append(" ").append(base64Secret).append(" ").append(base64Identifier);
-                    smudgeCommand.append(" ").append(base64Identifier).append(" ").append(base64Secret);
-                }
-            } else {
-                for (GitSecret secret : secrets.get(filePath)) {
-                    cleanCommand.append(" -e 's/").append(secret.secret).append("/{{").append(secret.identifier).append("}}/g'");
-                    smudgeCommand.append(" -e 's/{{").append(secret.identifier).append("}}/").append(secret.secret).append("/g'");
-                }
+            String name = line.contains("\"") ? line.substring(line.indexOf('"') + 1, line.lastIndexOf('"')) : "";
+            if (sections.containsKey(name) && written.add(name)) {
+                newGitConfigLines.addAll(sections.get(name));
+            }
+            i = end - 1;
+        }
+        while (!newGitConfigLines.isEmpty() && newGitConfigLines.get(newGitConfigLines.size() - 1).trim().isEmpty()) {
+            newGitConfigLines.remove(newGitConfigLines.size() - 1);
+        }
+        for (Map.Entry<String, List<String>> section : sections.entrySet()) {
+            if (!written.contains(section.getKey())) {
+                newGitConfigLines.addAll(section.getValue());
             }
-
-            gitConfigLines.add(cleanCommand.toString());
-            gitConfigLines.add(smudgeCommand.toString());
         }
+        newGitConfigLines.add("");
 
-        gitConfigLines.add("");
+        if (!newGitConfigLines.equals(gitConfigLines)) {
+            Files.write(gitConfigFile.toPath(), newGitConfigLines);
+        }
 
-        Files.write(gitConfigFile.toPath(), gitConfigLines);
+        if (applied != null) {
+            resmudgeChangedFiles(applied, filtered);
+        }
+        writeState(stateFile, filtered);
 
         if (!SystemUtils.IS_OS_WINDOWS && sedInstalled) {
             return;
@@ -205,6 +231,238 @@ public class GitSecret {
         Files.copy(is, replaceExecutable.toPath());
     }
 
+    private static List<String> filterSection(String filePath, List<GitSecret> fileSecrets, boolean sedInstalled) {
+        List<String> lines = new ArrayList<>();
+        lines.add("[filter \"" + filePath + "\"]");
+
+        StringBuilder cleanCommand = new StringBuilder("\tclean = ");
+        StringBuilder smudgeCommand = new StringBuilder("\tsmudge = ");
+        if (SystemUtils.IS_OS_WINDOWS) {
+            cleanCommand.append(".\\\\plugins\\\\MineCICD\\\\tools\\\\windows-replace.exe");
+            smudgeCommand.append(".\\\\plugins\\\\MineCICD\\\\tools\\\\windows-replace.exe");
+        } else {
+            if (sedInstalled) {
+                cleanCommand.append(" sed");
+                smudgeCommand.append(" sed");
+            } else {
+                cleanCommand.append(" ./plugins/MineCICD/tools/linux-replace.exe");
+                smudgeCommand.append(" ./plugins/MineCICD/tools/linux-replace.exe");
+            }
+        }
+
+        if (!sedInstalled) {
+            for (GitSecret secret : fileSecrets) {
+                String base64Secret = Base64.getEncoder().encodeToString(secret.secret.getBytes());
+                String base64Identifier = Base64.getEncoder().encodeToString(("{{" + secret.identifier + "}}").getBytes());
+
+                cleanCommand.append(" ").append(base64Secret).append(" ").append(base64Identifier);
+                smudgeCommand.append(" ").append(base64Identifier).append(" ").append(base64Secret);
+            }
+        } else {
+            for (GitSecret secret : fileSecrets) {
+                cleanCommand.append(" -e 's/").append(escapeSed(secret.secret, false)).append("/{{").append(escapeSed(secret.identifier, true)).append("}}/g'");
+                smudgeCommand.append(" -e 's/{{").append(escapeSed(secret.identifier, false)).append("}}/").append(escapeSed(secret.secret, true)).append("/g'");
+            }
+        }
+
+        lines.add(cleanCommand.toString());
+        lines.add(smudgeCommand.toString());
+        lines.add("\tuseJGitBuiltin = true");
+        return lines;
+    }
+
+    /**
+     * Rewrites the working tree files whose secrets changed since they were last applied, so they contain the new
+     * secrets. Files that no longer have any secrets are restored to their committed content, so their plaintext
+     * secrets are not committed by the next push. Files with local changes besides their secrets are left alone.
+     */
+    private static void resmudgeChangedFiles(Map<String, AppliedSecrets> applied, Map<String, ArrayList<GitSecret>> secrets) throws IOException {
+        List<String> resmudged = new ArrayList<>();
+        Repository repository = RepositoryManager.getRepository();
+        DirCache index = repository.readDirCache();
+        Set<String> filePaths = new TreeSet<>(secrets.keySet());
+        filePaths.addAll(applied.keySet());
+        for (String filePath : filePaths) {
+            // files that just got secrets or variables still contain the unrendered blob, removed ones get it back
+            AppliedSecrets previous = applied.get(filePath);
+            List<GitSecret> fileSecrets = secrets.getOrDefault(filePath, new ArrayList<>());
+            if ((previous == null ? hash(new ArrayList<>()) : previous.hash).equals(hash(fileSecrets))) continue;
+
+            File file = new File(".", filePath);
+            DirCacheEntry indexEntry = index.getEntry(filePath);
+            if (indexEntry == null || !file.isFile()) continue;
+
+            ObjectId blob = indexEntry.getObjectId();
+            Set<String> identifiers = new LinkedHashSet<>();
+            if (previous != null) identifiers.addAll(previous.identifiers);
+            fileSecrets.forEach(secret -> identifiers.add(secret.identifier));
+
+            // ISO-8859-1 maps every byte to one char, so non UTF-8 content is compared exactly as well
+            String template = new String(repository.open(blob).getBytes(), StandardCharsets.ISO_8859_1);
+            String current = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+            if (!isRenderingOf(current, template, identifiers)) {
+                if (fileSecrets.isEmpty()) {
+                    MineCICD.log(filePath + " no longer has secrets / variables, but has local changes and may still contain their values, remove them before pushing", Level.WARNING);
+                } else {
+                    MineCICD.log("Secrets / variables of " + filePath + " changed, but the file has local changes, not applying them", Level.WARNING);
+                }
+                continue;
+            }
+
+            File temp = new File(file.getParentFile(), "." + file.getName() + ".minecicd-tmp");
+            try (InputStream in = repository.open(blob).openStream();
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                SecretFilter.smudger(fileSecrets).replace(in, out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            resmudged.add(filePath);
+        }
+
+        if (!resmudged.isEmpty()) {
+            MineCICD.log("Applied changed secrets / variables to " + String.join(", ", resmudged), Level.INFO);
+            LocalChangeTracker.markPending(resmudged);
+        }
+    }
+
+    /**
+     * Whether content is the template with each {{identifier}} placeholder replaced by some value on the same line,
+     * the same value for every occurrence of an identifier. The values themselves are not needed for this.
+     */
+    private static boolean isRenderingOf(String content, String template, Collection<String> identifiers) {
+        if (identifiers.isEmpty()) {
+            return content.equals(template);
+        }
+
+        StringBuilder alternatives = new StringBuilder();
+        for (String identifier : identifiers) {
+            if (alternatives.length() > 0) alternatives.append('|');
+            alternatives.append(Pattern.quote("{{" + identifier + "}}"));
+        }
+
+        StringBuilder regex = new StringBuilder();
+        Map<String, Integer> groups = new HashMap<>();
+        Matcher placeholders = Pattern.compile(alternatives.toString()).matcher(template);
+        int last = 0;
+        while (placeholders.find()) {
+            regex.append(Pattern.quote(template.substring(last, placeholders.start())));
+            Integer group = groups.get(placeholders.group());
+            if (group == null) {
+                groups.put(placeholders.group(), groups.size() + 1);
+                regex.append("(.*?)");
+            } else {
+                regex.append('\\').append(group);
+            }
+            last = placeholders.end();
+        }
+        regex.append(Pattern.quote(template.substring(last)));
+        return Pattern.compile(regex.toString()).matcher(content).matches();
+    }
+
+    private static Map<String, AppliedSecrets> readState(File stateFile) throws IOException, InvalidConfigurationException {
+        FileConfiguration state = new YamlConfiguration();
+        state.load(stateFile);
+
+        Map<String, AppliedSecrets> applied = new HashMap<>();
+        for (String index : state.getKeys(false)) {
+            ConfigurationSection section = state.getConfigurationSection(index);
+            if (section == null || section.getString("file") == null || section.getString("hash") == null) {
+                throw new InvalidConfigurationException("Invalid state of file " + index);
+            }
+            applied.put(section.getString("file"), new AppliedSecrets(section.getString("hash"), section.getStringList("identifiers")));
+        }
+        return applied;
+    }
+
+    /**
+     * Stores the hash and the identifiers of the secrets of each file, so changes can be detected on the next run.
+     * Files written by earlier versions still contain values, so access is restricted to the owner as well.
+     */
+    private static void writeState(File stateFile, Map<String, ArrayList<GitSecret>> secrets) throws IOException {
+        if (!stateFile.exists()) {
+            Files.createFile(stateFile.toPath());
+        }
+        // restricted before anything is written, also fixes files written by earlier versions
+        boolean restricted = stateFile.setReadable(false, false) && stateFile.setReadable(true, true)
+                && stateFile.setWritable(false, false) && stateFile.setWritable(true, true);
+        if (!restricted) {
+            MineCICD.log("Could not restrict access to " + stateFile.getPath() + ", it contains all secrets and variables", Level.WARNING);
+        }
+
+        YamlConfiguration state = new YamlConfiguration();
+        int index = 1;
+        for (Map.Entry<String, ArrayList<GitSecret>> entry : secrets.entrySet()) {
+            ConfigurationSection section = state.createSection(String.valueOf(index++));
+            section.set("file", entry.getKey());
+            section.set("hash", hash(entry.getValue()));
+            List<String> identifiers = new ArrayList<>();
+            for (GitSecret secret : entry.getValue()) {
+                identifiers.add(secret.identifier);
+            }
+            section.set("identifiers", identifiers);
+        }
+        writeIfChanged(stateFile, state.saveToString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeIfChanged(File file, byte[] content) throws IOException {
+        if (file.exists() && Arrays.equals(Files.readAllBytes(file.toPath()), content)) {
+            return;
+        }
+        Files.write(file.toPath(), content);
+    }
+
+    /**
+     * Whether sed is available, checked once per server start.
+     */
+    private static synchronized boolean isSedInstalled() {
+        if (sedInstalled == null) {
+            sedInstalled = false;
+            if (!SystemUtils.IS_OS_WINDOWS) {
+                try {
+                    Process process = Runtime.getRuntime().exec("which sed");
+                    process.waitFor();
+                    sedInstalled = process.exitValue() == 0;
+                } catch (Exception ignored) {
+                    // Probably barebones Linux in Docker -> No which, no sed
+                }
+            }
+        }
+        return sedInstalled;
+    }
+
+    /**
+     * Content hash of the secrets of one file, in their order.
+     */
+    public static String hash(List<GitSecret> secrets) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (GitSecret secret : secrets) {
+                digest.update(secret.identifier.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(secret.secret.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Escapes a value for the pattern or the replacement of a sed s/// command, so it is matched literally.
+     * The backslashes are doubled once more, as .git/config unescapes them again.
+     */
+    private static String escapeSed(String value, boolean replacement) {
+        String special = replacement ? "\\/&" : "\\/.*[]^$";
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (special.indexOf(c) != -1) {
+                escaped.append("\\\\");
+            }
+            escaped.append(c == '\\' ? "\\\\" : String.valueOf(c));
+        }
+        return escaped.toString();
+    }
+
     public GitSecret(String identifier, String file, String secret) {
         this.identifier = identifier;
         this.file = file;
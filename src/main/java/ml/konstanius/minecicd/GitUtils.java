@@ -4,27 +4,37 @@ import org.apache.commons.io.FileUtils;
 import org.bukkit.boss.BarColor;
 import org.bukkit.boss.BarStyle;
 import org.bukkit.configuration.InvalidConfigurationException;
+import org.eclipse.jgit.api.AddCommand;
+import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeResult;
 import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.NoHeadException;
 import org.eclipse.jgit.api.errors.RefAlreadyExistsException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.merge.ContentMergeStrategy;
 import org.eclipse.jgit.merge.MergeStrategy;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
-import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -34,10 +44,10 @@ import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
 import static ml.konstanius.minecicd.Messages.getCleanMessage;
-import static ml.konstanius.minecicd.MineCICD.busyLock;
 
 public abstract class GitUtils {
     public static CredentialsProvider getCredentials() {
@@ -207,10 +217,9 @@ public abstract class GitUtils {
             return "";
         }
 
-        try (Git git = Git.open(new File("."))) {
-            return git.log().setMaxCount(1).call().iterator().next().getName();
-        } catch (NoHeadException ignored) {
-            return "";
+        try {
+            ObjectId head = RepositoryManager.getRepository().resolve(Constants.HEAD);
+            return head == null ? "" : head.getName();
         } catch (Exception e) {
             MineCICD.log("Failed to get current revision", Level.SEVERE);
             MineCICD.logError(e);
@@ -223,9 +232,9 @@ public abstract class GitUtils {
             return "";
         }
 
-        try (Git git = Git.open(new File("."))) {
-            git.fetch().setCredentialsProvider(getCredentials()).call();
-            return git.log().setMaxCount(1).add(git.getRepository().resolve("origin/" + Config.getString("git.branch"))).call().iterator().next().getName();
+        try (Git git = RepositoryManager.git()) {
+            ObjectId remoteId = fetchRemote(git);
+            return remoteId == null ? "" : remoteId.getName();
         } catch (Exception e) {
             MineCICD.log("Failed to get latest remote revision", Level.SEVERE);
             MineCICD.logError(e);
@@ -238,9 +247,28 @@ public abstract class GitUtils {
             return new HashSet<>();
         }
 
-        try (Git git = Git.open(new File("."))) {
-            git.add().addFilepattern(".").call();
-            return git.status().call().getUncommittedChanges();
+        if (LocalChangeTracker.isActive()) {
+            try {
+                Set<String> changes = LocalChangeTracker.getLocalChanges();
+                if (changes != null) {
+                    return changes;
+                }
+            } catch (Exception e) {
+                MineCICD.log("Local change tracker failed, falling back to a full scan", Level.WARNING);
+                MineCICD.logError(e);
+                LocalChangeTracker.invalidate();
+            }
+        }
+
+        try (Git git = RepositoryManager.git()) {
+            IgnorePruneFilter filter = IgnorePruneFilter.compile(git.getRepository());
+            git.add().addFilepattern(".")
+                    .setWorkingTreeIterator(new PrunedFileTreeIterator(git.getRepository(), filter))
+                    .call();
+            return git.status()
+                    .setWorkingTreeIt(new PrunedFileTreeIterator(git.getRepository(), filter))
+                    .call()
+                    .getUncommittedChanges();
         } catch (Exception e) {
             MineCICD.log("Failed to check for changes", Level.SEVERE);
             MineCICD.logError(e);
@@ -248,35 +276,109 @@ public abstract class GitUtils {
         }
     }
 
+    /**
+     * Fetches the configured branch from origin once and returns the tip the remote advertised in that fetch.
+     * Returns null if the remote does not (yet) have the branch.
+     */
+    public static ObjectId fetchRemote(Git git) throws GitAPIException {
+        String branch = Config.getString("git.branch");
+        FetchResult result = git.fetch().setCredentialsProvider(getCredentials()).call();
+        Ref advertised = result.getAdvertisedRef(Constants.R_HEADS + branch);
+        return advertised == null ? null : advertised.getObjectId();
+    }
+
+    /**
+     * Asks origin for the current tip of the configured branch through a plain ref advertisement, without
+     * transferring any objects. Returns null if the remote does not (yet) have the branch.
+     */
+    public static ObjectId lsRemoteTip(Git git) throws GitAPIException {
+        String branch = Config.getString("git.branch");
+        Map<String, Ref> refs = git.lsRemote()
+                .setRemote("origin")
+                .setHeads(true)
+                .setCredentialsProvider(getCredentials())
+                .callAsMap();
+        Ref advertised = refs.get(Constants.R_HEADS + branch);
+        return advertised == null ? null : advertised.getObjectId();
+    }
+
+    /**
+     * Stages exactly the given paths, including deletions, instead of scanning the entire server root.
+     */
+    public static void stagePaths(Git git, Collection<String> paths) throws GitAPIException, IOException {
+        if (paths.isEmpty()) return;
+
+        IgnorePruneFilter filter = IgnorePruneFilter.compile(git.getRepository());
+        AddCommand add = git.add().setWorkingTreeIterator(new PrunedFileTreeIterator(git.getRepository(), filter));
+        AddCommand update = git.add().setUpdate(true);
+        for (String path : paths) {
+            add.addFilepattern(path);
+            update.addFilepattern(path);
+        }
+        add.call();
+        update.call();
+    }
+
     public static List<DiffEntry> getRemoteChanges(Git git) throws GitAPIException, IOException {
-        boolean ownsBusy = !busyLock;
-        if (ownsBusy) busyLock = true;
-        try {
-            git.fetch().setCredentialsProvider(getCredentials()).call();
+        ObjectId oldRevId = git.getRepository().resolve(Constants.HEAD);
+        ObjectId newRevId = fetchRemote(git);
+        if (oldRevId == null || newRevId == null || oldRevId.equals(newRevId)) {
+            return new ArrayList<>();
+        }
+        return getChangesBetween(git, oldRevId, newRevId);
+    }
 
-            ObjectId oldRevId = git.getRepository().resolve("HEAD");
-            ObjectId newRevId = git.getRepository().resolve("origin/" + Config.getString("git.branch"));
-            return getChangesBetween(git, oldRevId, newRevId);
-        } finally {
-            if (ownsBusy) busyLock = false;
+    /**
+     * Changes between HEAD and the last fetched origin/branch, without contacting the remote.
+     */
+    public static List<DiffEntry> getFetchedChanges(Git git) throws IOException {
+        ObjectId oldRevId = git.getRepository().resolve(Constants.HEAD);
+        ObjectId newRevId = git.getRepository().resolve(Constants.R_REMOTES + "origin/" + Config.getString("git.branch"));
+        if (oldRevId == null || newRevId == null || oldRevId.equals(newRevId)) {
+            return new ArrayList<>();
         }
+        return getChangesBetween(git, oldRevId, newRevId);
+    }
+
+    /**
+     * Merges the already fetched origin/branch into the current branch, without contacting the remote.
+     */
+    public static MergeResult mergeRemote(Git git, String branch) throws GitAPIException, IOException {
+        Ref remoteRef = git.getRepository().exactRef(Constants.R_REMOTES + "origin/" + branch);
+        if (remoteRef == null) {
+            throw new IllegalStateException("Remote origin did not advertise Ref for branch " + branch);
+        }
+
+        MergeResult result = git.merge()
+                .include(remoteRef)
+                .setStrategy(MergeStrategy.THEIRS)
+                .setContentMergeStrategy(ContentMergeStrategy.THEIRS)
+                .call();
+        if (!result.getMergeStatus().isSuccessful()) {
+            MineCICD.log("Merging origin/" + branch + " finished with status " + result.getMergeStatus(), Level.WARNING);
+        }
+        return result;
     }
 
     public static List<DiffEntry> getChangesBetween(Git git, ObjectId oldRevId, ObjectId newRevId) throws IOException {
-        AbstractTreeIterator oldTreeParser = prepareTreeParser(git.getRepository(), oldRevId);
-        AbstractTreeIterator newTreeParser = prepareTreeParser(git.getRepository(), newRevId);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        DiffFormatter diffFormatter = new DiffFormatter(out);
-        diffFormatter.setRepository(git.getRepository());
+        return getChangesBetween(git, oldRevId, newRevId, TreeFilter.ALL);
+    }
 
-        diffFormatter.close();
-        return diffFormatter.scan(oldTreeParser, newTreeParser);
+    public static List<DiffEntry> getChangesBetween(Git git, ObjectId oldRevId, ObjectId newRevId, TreeFilter filter) throws IOException {
+        AbstractTreeIterator oldTreeParser = oldRevId == null ? new EmptyTreeIterator() : prepareTreeParser(oldRevId);
+        AbstractTreeIterator newTreeParser = prepareTreeParser(newRevId);
+
+        ObjectReader reader = RepositoryManager.borrowReader();
+        try (DiffFormatter diffFormatter = new DiffFormatter(new ByteArrayOutputStream())) {
+            diffFormatter.setReader(reader, git.getRepository().getConfig());
+            diffFormatter.setPathFilter(filter);
+            return diffFormatter.scan(oldTreeParser, newTreeParser);
+        } finally {
+            RepositoryManager.releaseReader(reader);
+        }
     }
 
     public static boolean pull() throws GitAPIException, URISyntaxException, IOException, InvalidConfigurationException, InterruptedException {
-        boolean ownsBusy = !busyLock;
-        if (ownsBusy) busyLock = true;
-
         String bar = MineCICD.addBar(getCleanMessage("bossbar-pulling", true), BarColor.BLUE, BarStyle.SOLID);
 
         try {
@@ -293,8 +395,10 @@ public abstract class GitUtils {
             boolean changes;
             String oldCommit = getCurrentRevision();
             if (!activeRepoExists()) {
-                try (Git git = Git.init().setDirectory(new File(".")).call()) {
-                    GitSecret.configureGitSecretFiltering(GitSecret.readFromSecretsStore());
+                Git.init().setDirectory(new File(".")).call().close();
+                RepositoryManager.close();
+                try (Git git = RepositoryManager.git()) {
+                    GitSecret.configureGitSecretFiltering(ServerVariables.applyTo(GitSecret.readFromSecretsStore()));
                     git.remoteAdd().setName("origin").setUri(new URIish(repo)).call();
                     git.fetch().setCredentialsProvider(getCredentials()).call();
 
@@ -315,192 +419,74 @@ public abstract class GitUtils {
                         }
                         git.checkout().setName(branch).call();
 
+                        ReloadPlanner planner = null;
                         if (Config.getBoolean("experimental-jar-loading")) {
-                            File pluginsFolder = new File(new File("."), "plugins");
-                            if (pluginsFolder.exists()) {
-                                File[] files = pluginsFolder.listFiles();
-                                if (files != null) {
-                                    for (File file : files) {
-                                        if (file.getName().endsWith(".jar") && !file.getName().contains("MineCICD") && !file.getName().contains("PlugMan")) {
-                                            String pluginStripped = file.getName();
-                                            // up until first "-" or " " or "." or "_"
-                                            int index = pluginStripped.indexOf("-");
-                                            if (index == -1) index = pluginStripped.indexOf(" ");
-                                            if (index == -1) index = pluginStripped.indexOf("_");
-                                            if (index == -1) index = pluginStripped.indexOf(".");
-                                            if (index != -1) {
-                                                pluginStripped = pluginStripped.substring(0, index);
-                                            }
-
-                                            // run "plugman unload <plugin>"
-                                            String command = "plugman unload " + pluginStripped;
-                                            try {
-                                                String finalPluginStripped = pluginStripped;
-                                                MineCICD.plugin.getServer().getScheduler().callSyncMethod(MineCICD.plugin, () -> {
-                                                    try {
-                                                        MineCICD.plugin.getServer().dispatchCommand(MineCICD.plugin.getServer().getConsoleSender(), command);
-                                                    } catch (Exception e) {
-                                                        MineCICD.log("Failed to unload plugin " + finalPluginStripped, Level.SEVERE);
-                                                        MineCICD.logError(e);
-                                                    }
-                                                    return null;
-                                                }).get();
-                                            } catch (Exception e) {
-                                                MineCICD.log("Failed to unload plugin " + pluginStripped, Level.SEVERE);
-                                                MineCICD.logError(e);
-                                            }
-                                        }
-                                    }
-                                }
-                            }
+                            planner = new ReloadPlanner(listPluginJars());
+                            runPlugman("unload", planner.getUnloadOrder());
                         }
 
-                        git.pull().setStrategy(MergeStrategy.THEIRS).setCredentialsProvider(getCredentials()).setContentMergeStrategy(ContentMergeStrategy.THEIRS).call();
+                        mergeRemote(git, branch);
 
-                        if (Config.getBoolean("experimental-jar-loading")) {
-                            File pluginsFolder = new File(new File("."), "plugins");
-                            if (pluginsFolder.exists()) {
-                                File[] files = pluginsFolder.listFiles();
-                                if (files != null) {
-                                    for (File file : files) {
-                                        if (file.getName().endsWith(".jar") && !file.getName().contains("MineCICD") && !file.getName().contains("PlugMan")) {
-                                            String pluginStripped = file.getName();
-                                            // up until first "-" or " " or "." or "_"
-                                            int index = pluginStripped.indexOf("-");
-                                            if (index == -1) index = pluginStripped.indexOf(" ");
-                                            if (index == -1) index = pluginStripped.indexOf("_");
-                                            if (index == -1) index = pluginStripped.indexOf(".");
-                                            if (index != -1) {
-                                                pluginStripped = pluginStripped.substring(0, index);
-                                            }
-
-                                            // run "plugman unload <plugin>"
-                                            String command = "plugman load " + pluginStripped;
-                                            try {
-                                                String finalPluginStripped = pluginStripped;
-                                                MineCICD.plugin.getServer().getScheduler().callSyncMethod(MineCICD.plugin, () -> {
-                                                    try {
-                                                        MineCICD.plugin.getServer().dispatchCommand(MineCICD.plugin.getServer().getConsoleSender(), command);
-                                                    } catch (Exception e) {
-                                                        MineCICD.log("Failed to load plugin " + finalPluginStripped, Level.SEVERE);
-                                                        MineCICD.logError(e);
-                                                    }
-                                                    return null;
-                                                }).get();
-                                            } catch (Exception e) {
-                                                MineCICD.log("Failed to load plugin " + pluginStripped, Level.SEVERE);
-                                                MineCICD.logError(e);
-                                            }
-                                        }
-                                    }
-                                }
-                            }
+                        if (planner != null) {
+                            runPlugman("load", planner.getLoadOrder(listPluginJars()));
                         }
                     }
                     String newCommit = git.log().setMaxCount(1).call().iterator().next().getName();
                     changes = !newCommit.equals(oldCommit);
                 }
+                LocalChangeTracker.start();
+                PreFetchScheduler.start();
+                RemotePoller.start();
             } else {
-                try (Git git = Git.open(new File("."))) {
-                    // fetch which files are going to be changed by pulling (where remote is ahead of local)
-                    String current = getCurrentRevision();
-                    String latestRemote = getLatestRemoteRevision();
-                    ArrayList<String> toDisable = new ArrayList<>();
-                    ArrayList<String> toEnable = new ArrayList<>();
-                    if (Config.getBoolean("experimental-jar-loading")) {
-                        if (!current.equals(latestRemote)) {
-                            List<DiffEntry> diffs = getRemoteChanges(git);
-
-                            for (DiffEntry diff : diffs) {
-                                String path = diff.getNewPath();
-                                if (!path.startsWith("plugins/")) continue;
-                                if (!path.endsWith(".jar")) continue;
-
-                                File file = new File(path);
-
-                                if (diff.getChangeType() == DiffEntry.ChangeType.ADD || diff.getChangeType() == DiffEntry.ChangeType.MODIFY || diff.getChangeType() == DiffEntry.ChangeType.RENAME) {
-                                    toEnable.add(file.getName());
-                                }
+                try (Git git = RepositoryManager.git()) {
+                    // fetch once, everything below works on the objects and refs of this single fetch
+                    ObjectId current = git.getRepository().resolve(Constants.HEAD);
+                    ObjectId latestRemote = fetchRemote(git);
+                    if (latestRemote == null) {
+                        throw new IllegalStateException("Remote origin did not advertise Ref for branch " + branch);
+                    }
 
-                                if (diff.getChangeType() == DiffEntry.ChangeType.DELETE || diff.getChangeType() == DiffEntry.ChangeType.MODIFY || diff.getChangeType() == DiffEntry.ChangeType.RENAME) {
-                                    toDisable.add(file.getName());
+                    List<PluginResolver.PluginInfo> toDisable = new ArrayList<>();
+                    List<String> toEnable = new ArrayList<>();
+                    ReloadPlanner planner = null;
+                    if (Config.getBoolean("experimental-jar-loading") && current != null && !current.equals(latestRemote)) {
+                        // the old jars are still on disk here, so their plugin.yml tells which plugins to unload
+                        for (DiffEntry diff : getChangesBetween(git, current, latestRemote)) {
+                            DiffEntry.ChangeType type = diff.getChangeType();
+                            if (type != DiffEntry.ChangeType.ADD && type != DiffEntry.ChangeType.COPY && PluginResolver.isPluginJar(diff.getOldPath())) {
+                                PluginResolver.PluginInfo info = PluginResolver.describe(new File(diff.getOldPath()));
+                                if (info != null) {
+                                    toDisable.add(info);
                                 }
                             }
-
-                            if (!toDisable.isEmpty()) {
-                                // Disable these plugins
-                                for (String plugin : toDisable) {
-                                    String pluginStripped = plugin;
-                                    // up until first "-" or " " or "." or "_"
-                                    int index = pluginStripped.indexOf("-");
-                                    if (index == -1) index = pluginStripped.indexOf(" ");
-                                    if (index == -1) index = pluginStripped.indexOf("_");
-                                    if (index == -1) index = pluginStripped.indexOf(".");
-                                    if (index != -1) {
-                                        pluginStripped = pluginStripped.substring(0, index);
-                                    } else {
-                                        pluginStripped = plugin;
-                                    }
-                                    // run "plugman unload <plugin>"
-                                    String command = "plugman unload " + pluginStripped;
-                                    try {
-                                        String finalPluginStripped = pluginStripped;
-                                        MineCICD.plugin.getServer().getScheduler().callSyncMethod(MineCICD.plugin, () -> {
-                                            try {
-                                                MineCICD.plugin.getServer().dispatchCommand(MineCICD.plugin.getServer().getConsoleSender(), command);
-                                            } catch (Exception e) {
-                                                MineCICD.log("Failed to unload plugin " + finalPluginStripped, Level.SEVERE);
-                                                MineCICD.logError(e);
-                                            }
-                                            return null;
-                                        }).get();
-                                    } catch (Exception e) {
-                                        MineCICD.log("Failed to unload plugin " + pluginStripped, Level.SEVERE);
-                                        MineCICD.logError(e);
-                                    }
-                                }
+                            if (type != DiffEntry.ChangeType.DELETE && PluginResolver.isPluginJar(diff.getNewPath())) {
+                                toEnable.add(diff.getNewPath());
                             }
                         }
+
+                        PluginResolver.refreshIndex();
+                        planner = new ReloadPlanner(toDisable);
+                        runPlugman("unload", planner.getUnloadOrder());
                     }
 
-                    git.pull().setStrategy(MergeStrategy.THEIRS).setCredentialsProvider(getCredentials()).setContentMergeStrategy(ContentMergeStrategy.THEIRS).call();
+                    if (!latestRemote.equals(current)) {
+                        mergeRemote(git, branch);
+                        LocalChangeTracker.invalidate();
+                    }
                     String newCommit = git.log().setMaxCount(1).call().iterator().next().getName();
                     changes = !newCommit.equals(oldCommit);
 
-                    if (Config.getBoolean("experimental-jar-loading")) {
-                        if (!toEnable.isEmpty()) {
-                            // Enable these plugins
-                            for (String plugin : toEnable) {
-                                String pluginStripped = plugin;
-                                // up until first "-" or " " or "." or "_"
-                                int index = pluginStripped.indexOf("-");
-                                if (index == -1) index = pluginStripped.indexOf(" ");
-                                if (index == -1) index = pluginStripped.indexOf("_");
-                                if (index == -1) index = pluginStripped.indexOf(".");
-                                if (index != -1) {
-                                    pluginStripped = pluginStripped.substring(0, index);
-                                } else {
-                                    pluginStripped = plugin;
-                                }
-                                // run "plugman load <plugin>"
-                                String command = "plugman load " + pluginStripped;
-                                try {
-                                    String finalPluginStripped = pluginStripped;
-                                    MineCICD.plugin.getServer().getScheduler().callSyncMethod(MineCICD.plugin, () -> {
-                                        try {
-                                            MineCICD.plugin.getServer().dispatchCommand(MineCICD.plugin.getServer().getConsoleSender(), command);
-                                        } catch (Exception e) {
-                                            MineCICD.log("Failed to load plugin " + finalPluginStripped, Level.SEVERE);
-                                            MineCICD.logError(e);
-                                        }
-                                        return null;
-                                    }).get();
-                                } catch (Exception e) {
-                                    MineCICD.log("Failed to load plugin " + pluginStripped, Level.SEVERE);
-                                    MineCICD.logError(e);
-                                }
+                    if (planner != null) {
+                        List<PluginResolver.PluginInfo> toLoad = new ArrayList<>();
+                        for (String path : toEnable) {
+                            PluginResolver.PluginInfo info = PluginResolver.describe(new File(path));
+                            if (info == null) {
+                                MineCICD.log("Not loading " + path + ", it does not contain a valid plugin.yml", Level.WARNING);
+                                continue;
                             }
+                            toLoad.add(info);
                         }
+                        runPlugman("load", planner.getLoadOrder(toLoad));
                     }
                 }
             }
@@ -522,23 +508,64 @@ public abstract class GitUtils {
                 MineCICD.removeBar(bar, 0);
             }
             throw e;
-        } finally {
-            if (ownsBusy) busyLock = false;
         }
     }
 
-    private static AbstractTreeIterator prepareTreeParser(Repository repository, ObjectId objectId) throws IOException {
-        // Prepare the tree parser
-        CanonicalTreeParser treeParser = new CanonicalTreeParser();
-        try (org.eclipse.jgit.revwalk.RevWalk walk = new org.eclipse.jgit.revwalk.RevWalk(repository)) {
-            org.eclipse.jgit.revwalk.RevCommit commit = walk.parseCommit(objectId);
-            org.eclipse.jgit.revwalk.RevTree tree = walk.parseTree(commit.getTree().getId());
-            try (org.eclipse.jgit.treewalk.TreeWalk treeWalk = new org.eclipse.jgit.treewalk.TreeWalk(repository)) {
-                treeWalk.addTree(tree);
-                treeParser.reset(treeWalk.getObjectReader(), tree);
+    private static List<PluginResolver.PluginInfo> listPluginJars() {
+        List<PluginResolver.PluginInfo> jars = new ArrayList<>();
+        File[] files = new File(new File("."), "plugins").listFiles();
+        if (files == null) {
+            return jars;
+        }
+
+        for (File file : files) {
+            if (!file.getName().endsWith(".jar")) continue;
+            PluginResolver.PluginInfo info = PluginResolver.describe(file);
+            if (info != null && !PluginResolver.isProtected(info.name)) {
+                jars.add(info);
+            }
+        }
+        return jars;
+    }
+
+    /**
+     * Runs "plugman &lt;action&gt; &lt;plugin&gt;" for all plugins in the given order, as one batch on the main thread.
+     * Plugins MineCICD depends on itself are never touched.
+     */
+    private static void runPlugman(String action, List<String> pluginNames) {
+        if (pluginNames.isEmpty()) {
+            return;
+        }
+        MineCICD.log("Running plugman " + action + " for " + String.join(", ", pluginNames), Level.INFO);
+
+        // one piece of main thread work per plugin, the scheduler spreads them over ticks but keeps their order
+        MainThreadScheduler.Tracker tracker = new MainThreadScheduler.Tracker();
+        Map<String, CompletableFuture<Void>> work = new LinkedHashMap<>();
+        for (String pluginName : pluginNames) {
+            if (PluginResolver.isProtected(pluginName)) continue;
+            work.put(pluginName, MainThreadScheduler.dispatch(tracker, "plugman " + action + " " + pluginName));
+        }
+
+        for (Map.Entry<String, CompletableFuture<Void>> entry : work.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (Exception e) {
+                MineCICD.log("Failed to " + action + " plugin " + entry.getKey(), Level.SEVERE);
+                MineCICD.logError(e);
             }
         }
-        return treeParser;
+        MineCICD.log("plugman " + action + " used " + tracker.getTicks() + " tick(s) and " + tracker.getMillis() + "ms of main thread time", Level.INFO);
+    }
+
+    private static AbstractTreeIterator prepareTreeParser(ObjectId objectId) throws IOException {
+        // Prepare the tree parser, the parser reads the whole tree so the pooled reader can be released afterwards
+        return RepositoryManager.withRevWalk(walk -> {
+            RevCommit commit = walk.parseCommit(objectId);
+            RevTree tree = walk.parseTree(commit.getTree().getId());
+            CanonicalTreeParser treeParser = new CanonicalTreeParser();
+            treeParser.reset(walk.getObjectReader(), tree);
+            return treeParser;
+        });
     }
 
     public static void push(String message, String author) throws Exception {
@@ -546,25 +573,31 @@ public abstract class GitUtils {
             throw new IllegalStateException("Repository has to be pulled (cloned) before changes can be pushed.");
         }
 
-        boolean ownsBusy = !busyLock;
-        if (ownsBusy) busyLock = true;
-
         String bar = MineCICD.addBar(getCleanMessage("bossbar-pushing", true), BarColor.BLUE, BarStyle.SOLID);
 
         try {
             // TODO check if all remote commits have been pulled first
 
-            try (Git git = Git.open(new File("."))) {
-                git.add().addFilepattern(".").call();
-
-                boolean changes = !getLocalChanges().isEmpty();
-                if (!changes) {
+            try (Git git = RepositoryManager.git()) {
+                Set<String> changes = getLocalChanges();
+                if (changes.isEmpty()) {
                     MineCICD.changeBar(bar, getCleanMessage("bossbar-push-no-changes", true), BarColor.GREEN, BarStyle.SOLID);
                     MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
                     throw new IllegalStateException("No changes to push");
                 }
 
-                RevCommit commit = git.commit().setAll(true).setAuthor(author, author).setMessage(message).call();
+                stagePaths(git, changes);
+                try {
+                    preventSecretLeaks(git);
+                } catch (IllegalStateException e) {
+                    // nothing this push staged may be picked up by a later add or remove
+                    unstage(git, new ArrayList<>(changes));
+                    MineCICD.changeBar(bar, getCleanMessage("bossbar-push-failed", true), BarColor.RED, BarStyle.SEGMENTED_12);
+                    MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
+                    throw e;
+                }
+                RevCommit commit = git.commit().setAuthor(author, author).setMessage(message).call();
+                LocalChangeTracker.markPending(changes);
                 git.push().add(commit.getName()).setCredentialsProvider(getCredentials()).call();
             }
 
@@ -578,39 +611,89 @@ public abstract class GitUtils {
                 MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
             }
             throw e;
-        } finally {
-            if (ownsBusy) busyLock = false;
-        }
-    }
-
-    public static List<String> getIncludedFiles() throws IOException, GitAPIException {
-        List<String> paths = new ArrayList<>();
-        try (Git git = Git.open(new File("."))) {
-            git.add().addFilepattern(".").call();
-            RevWalk walk = new RevWalk(git.getRepository());
-            RevCommit commit = walk.parseCommit(git.getRepository().resolve("HEAD"));
-            RevTree tree = commit.getTree();
-
-            TreeWalk treeWalk = new TreeWalk(git.getRepository());
-            treeWalk.addTree(tree);
-            treeWalk.setRecursive(true);
-            while (treeWalk.next()) {
-                String path = treeWalk.getPathString();
-                if (File.separator.equals("\\")) {
-                    path = path.replace("/", "\\");
-                } else {
-                    path = path.replace("\\", "/");
+        }
+    }
+
+    /**
+     * Unstages and rejects staged files that contain a plaintext secret from secrets.yml, or templates whose variable
+     * values would be turned into placeholders outside of the committed template.
+     */
+    private static void preventSecretLeaks(Git git) throws GitAPIException, IOException {
+        List<String> leaks = LeakScanner.scan(git.getRepository());
+        if (!leaks.isEmpty()) {
+            unstage(git, leaks);
+            MineCICD.log("Refusing to commit plaintext secrets in " + String.join(", ", leaks), Level.SEVERE);
+            throw new IllegalStateException("Secrets from secrets.yml found in " + String.join(", ", leaks) + ", nothing was pushed. Add these files to secrets.yml or remove the secrets from them.");
+        }
+
+        List<String> ambiguous = ServerVariables.findAmbiguous(git.getRepository());
+        if (!ambiguous.isEmpty()) {
+            unstage(git, ambiguous);
+            throw new IllegalStateException("Committing " + String.join(", ", ambiguous) + " would turn variable values into placeholders outside of the template, nothing was pushed. Put the placeholders into these files manually or use more specific values in variables.yml.");
+        }
+    }
+
+    private static void unstage(Git git, List<String> paths) throws GitAPIException {
+        ResetCommand reset = git.reset();
+        for (String path : paths) {
+            reset.addPath(path);
+        }
+        reset.call();
+        LocalChangeTracker.markPending(paths);
+    }
+
+    /**
+     * Counts the entries of the given type between two commits, limited to the given path (file or directory).
+     */
+    public static int countChangesBetween(Git git, ObjectId oldRevId, ObjectId newRevId, String path, DiffEntry.ChangeType type) throws IOException {
+        TreeFilter filter = path.isEmpty() ? TreeFilter.ALL : PathFilter.create(path);
+
+        int count = 0;
+        for (DiffEntry entry : getChangesBetween(git, oldRevId, newRevId, filter)) {
+            if (entry.getChangeType() == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isTracked(Repository repository, String path) throws IOException {
+        DirCache index = repository.readDirCache();
+        return index.getEntry(path) != null || index.getEntriesWithin(path).length > 0;
+    }
+
+    /**
+     * Unstages all changes outside the given paths (files or directories), so the next commit only contains them.
+     */
+    private static void unstageAllExcept(Git git, String... paths) throws GitAPIException, IOException {
+        Repository repository = git.getRepository();
+        ObjectId head = repository.resolve(Constants.HEAD + "^{tree}");
+        List<String> others = new ArrayList<>();
+        try (TreeWalk walk = new TreeWalk(repository)) {
+            if (head == null) {
+                walk.addTree(new EmptyTreeIterator());
+            } else {
+                walk.addTree(head);
+            }
+            walk.addTree(new DirCacheIterator(repository.readDirCache()));
+            walk.setRecursive(true);
+            walk.setFilter(TreeFilter.ANY_DIFF);
+            next:
+            while (walk.next()) {
+                String path = walk.getPathString();
+                for (String kept : paths) {
+                    if (path.equals(kept) || path.startsWith(kept + "/")) continue next;
                 }
-                paths.add(path);
+                others.add(path);
             }
         }
-        return paths;
+
+        if (!others.isEmpty()) {
+            unstage(git, others);
+        }
     }
 
     public static int add(File file, String author) throws GitAPIException, IOException {
-        boolean ownsBusy = !busyLock;
-        if (ownsBusy) busyLock = true;
-
         String bar = MineCICD.addBar(getCleanMessage("bossbar-adding", true), BarColor.BLUE, BarStyle.SOLID);
 
         try {
@@ -620,20 +703,37 @@ public abstract class GitUtils {
 
             File root = new File(".");
 
-            int before = getIncludedFiles().size();
-
             String relativePath = root.toPath().toAbsolutePath().relativize(file.toPath().toAbsolutePath()).toString();
             relativePath = relativePath.replace("\\", "/");
+            File gitIgnoreFile = new File(root, ".gitignore");
+            byte[] gitIgnore = gitIgnoreFile.exists() ? Files.readAllBytes(gitIgnoreFile.toPath()) : null;
             allowInGitIgnore(relativePath, file.isDirectory());
 
-            try (Git git = Git.open(new File("."))) {
-                git.add().addFilepattern(".").call();
-                RevCommit commit = git.commit().setAuthor(author, author).setAll(true).setMessage("MineCICD added \"" + relativePath + "\"").call();
+            int added;
+            try (Git git = RepositoryManager.git()) {
+                // only stage the target path and the .gitignore, never the whole server root
+                ObjectId before = git.getRepository().resolve(Constants.HEAD);
+                git.add().addFilepattern(".gitignore").addFilepattern(relativePath).call();
+                try {
+                    preventSecretLeaks(git);
+                } catch (IllegalStateException e) {
+                    // a refused add leaves the index and the .gitignore as they were found
+                    git.reset().addPath(".gitignore").addPath(relativePath).call();
+                    Files.write(gitIgnoreFile.toPath(), gitIgnore);
+                    throw e;
+                }
+
+                // commit only what was named, whatever else is staged stays out of this commit
+                CommitCommand commitCommand = git.commit().setAuthor(author, author).setMessage("MineCICD added \"" + relativePath + "\"")
+                        .setAllowEmpty(true).setOnly(".gitignore");
+                if (isTracked(git.getRepository(), relativePath)) {
+                    commitCommand.setOnly(relativePath);
+                }
+                RevCommit commit = commitCommand.call();
                 git.push().add(commit.getName()).setCredentialsProvider(getCredentials()).call();
+                added = countChangesBetween(git, before, commit, relativePath, DiffEntry.ChangeType.ADD);
             }
-
-            int after = getIncludedFiles().size();
-            int added = after - before;
+            LocalChangeTracker.invalidate();
 
             MineCICD.changeBar(bar, getCleanMessage("bossbar-added", true, new HashMap<String, String>() {{
                 put("amount", String.valueOf(added));
@@ -650,15 +750,10 @@ public abstract class GitUtils {
                 MineCICD.removeBar(bar, 0);
             }
             throw e;
-        } finally {
-            if (ownsBusy) busyLock = false;
         }
     }
 
     public static int remove(File file, String author) throws GitAPIException, IOException {
-        boolean ownsBusy = !busyLock;
-        if (ownsBusy) busyLock = true;
-
         String bar = MineCICD.addBar(getCleanMessage("bossbar-removing", true), BarColor.BLUE, BarStyle.SOLID);
 
         try {
@@ -668,21 +763,22 @@ public abstract class GitUtils {
 
             File root = new File(".");
 
-            int amountBefore = getIncludedFiles().size();
-
             String relativePath = root.toPath().toAbsolutePath().relativize(file.toPath().toAbsolutePath()).toString();
             relativePath = relativePath.replace("\\", "/");
 
-            int amountAfter;
-            try (Git git = Git.open(new File("."))) {
+            int amountRemoved;
+            try (Git git = RepositoryManager.git()) {
+                ObjectId before = git.getRepository().resolve(Constants.HEAD);
                 git.rm().setCached(true).addFilepattern(relativePath).call();
                 removeFromGitIgnore(relativePath, file.isDirectory());
-                RevCommit commit = git.commit().setAuthor(author, author).setAll(true).setMessage("MineCICD removed \"" + relativePath + "\"").call();
+                git.add().addFilepattern(".gitignore").call();
+                // setOnly would commit the removed files again, as they are still in the working tree
+                unstageAllExcept(git, relativePath, ".gitignore");
+                RevCommit commit = git.commit().setAuthor(author, author).setMessage("MineCICD removed \"" + relativePath + "\"").call();
                 git.push().add(commit.getName()).setCredentialsProvider(getCredentials()).call();
-                amountAfter = getIncludedFiles().size();
+                amountRemoved = countChangesBetween(git, before, commit, relativePath, DiffEntry.ChangeType.DELETE);
             }
-
-            int amountRemoved = amountBefore - amountAfter;
+            LocalChangeTracker.invalidate();
 
             MineCICD.changeBar(bar, getCleanMessage("bossbar-removed", true, new HashMap<String, String>() {{
                 put("amount", String.valueOf(amountRemoved));
@@ -699,8 +795,6 @@ public abstract class GitUtils {
                 MineCICD.removeBar(bar, 0);
             }
             throw e;
-        } finally {
-            if (ownsBusy) busyLock = false;
         }
     }
 
@@ -709,13 +803,11 @@ public abstract class GitUtils {
             throw new IllegalStateException("Repository has to be pulled (cloned) before it can be reset.");
         }
 
-        boolean ownsBusy = !busyLock;
-        if (ownsBusy) busyLock = true;
-
         String bar = MineCICD.addBar(getCleanMessage("bossbar-resetting", true), BarColor.BLUE, BarStyle.SOLID);
 
-        try (Git git = Git.open(new File("."))) {
+        try (Git git = RepositoryManager.git()) {
             git.reset().setMode(ResetCommand.ResetType.HARD).setRef(commit).call();
+            LocalChangeTracker.invalidate();
             MineCICD.changeBar(bar, getCleanMessage("bossbar-reset", true), BarColor.GREEN, BarStyle.SOLID);
             MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
         } catch (Exception e) {
@@ -728,8 +820,6 @@ public abstract class GitUtils {
                 MineCICD.removeBar(bar, 0);
             }
             throw e;
-        } finally {
-            if (ownsBusy) busyLock = false;
         }
     }
 
@@ -738,14 +828,12 @@ public abstract class GitUtils {
             throw new IllegalStateException("Repository has to be pulled (cloned) before it can be reverted.");
         }
 
-        boolean ownsBusy = !busyLock;
-        if (ownsBusy) busyLock = true;
-
         String bar = MineCICD.addBar(getCleanMessage("bossbar-reverting", true), BarColor.BLUE, BarStyle.SOLID);
 
-        try (Git git = Git.open(new File("."))) {
+        try (Git git = RepositoryManager.git()) {
             ObjectId commitId = git.getRepository().resolve(commit);
             RevCommit revCommit = git.revert().include(commitId).call();
+            LocalChangeTracker.invalidate();
             git.push().add(revCommit.getName()).setCredentialsProvider(getCredentials()).call();
             MineCICD.changeBar(bar, getCleanMessage("bossbar-reverted", true), BarColor.GREEN, BarStyle.SOLID);
             MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
@@ -759,8 +847,6 @@ public abstract class GitUtils {
                 MineCICD.removeBar(bar, 0);
             }
             throw e;
-        } finally {
-            if (ownsBusy) busyLock = false;
         }
     }
 
@@ -771,7 +857,7 @@ public abstract class GitUtils {
 
         String lastCommit;
         long rollbackTime = calendar.getTimeInMillis();
-        try (Git git = Git.open(new File("."))) {
+        try (Git git = RepositoryManager.git()) {
             RevCommit commit = git.log().setMaxCount(1).call().iterator().next();
             PersonIdent author = commit.getAuthorIdent();
             Date commitTime = author.getWhen();
@@ -805,29 +891,31 @@ public abstract class GitUtils {
     }
 
     public static void mergeAbort() throws IOException, GitAPIException {
-        try (Git git = Git.open(new File("."))) {
+        try (Git git = RepositoryManager.git()) {
             Repository repository = git.getRepository();
             repository.writeMergeCommitMsg(null);
             repository.writeMergeHeads(null);
             git.reset().setMode(ResetCommand.ResetType.HARD).call();
         }
+        LocalChangeTracker.invalidate();
     }
 
     public static void repoReset() {
+        LocalChangeTracker.stop();
+        PreFetchScheduler.stop();
+        RemotePoller.stop();
+        RepositoryManager.close();
         FileUtils.deleteQuietly(new File(new File("."), ".git"));
         FileUtils.deleteQuietly(new File(new File("."), ".gitignore"));
     }
 
     public static RevCommit getCommit(String commit) throws IOException {
-        try (Git git = Git.open(new File("."))) {
-            ObjectId commitId = git.getRepository().resolve(commit);
-            if (commitId == null) {
-                throw new IllegalArgumentException("Commit not found");
-            }
-
-            RevWalk walk = new RevWalk(git.getRepository());
-            return walk.parseCommit(commitId);
+        ObjectId commitId = RepositoryManager.getRepository().resolve(commit);
+        if (commitId == null) {
+            throw new IllegalArgumentException("Commit not found");
         }
+
+        return RepositoryManager.withRevWalk(walk -> walk.parseCommit(commitId));
     }
 
     public static void setBranchIfInited() throws IOException, GitAPIException {
@@ -835,7 +923,7 @@ public abstract class GitUtils {
             return;
         }
 
-        try (Git git = Git.open(new File("."))) {
+        try (Git git = RepositoryManager.git()) {
             if (git.branchList().call().stream().noneMatch(ref -> ref.getName().equals("refs/heads/" + Config.getString("git.branch")))) {
                 try {
                     git.branchCreate().setName(Config.getString("git.branch")).call();
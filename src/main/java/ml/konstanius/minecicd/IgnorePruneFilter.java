@@ -0,0 +1,111 @@
+package ml.konstanius.minecicd;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The MineCICD .gitignore starts with "*" and "!*&#47;", so every directory is re-included and Git would descend into
+ * every world, log and cache folder just to discard all files in there.
+ * <p>
+ * This filter is compiled from the root .gitignore and the index, and excludes every directory that can contain
+ * neither a tracked file nor a path re-included by a "!..." rule. It is applied while walking the working tree,
+ * see {@link PrunedFileTreeIterator}.<br>
+ * - Anchored re-include rules ("!/plugins/Example/**") keep their literal prefix and everything below it<br>
+ * - Unanchored re-include rules ("!*.yml") may match anywhere, in which case nothing is pruned<br>
+ * - Re-include rules in nested .gitignore files are only respected if that .gitignore is tracked
+ */
+public class IgnorePruneFilter {
+    private final Set<String> keptDirectories;
+    private final List<String> reincludedPrefixes;
+    private final boolean pruning;
+
+    private IgnorePruneFilter(Set<String> keptDirectories, List<String> reincludedPrefixes, boolean pruning) {
+        this.keptDirectories = keptDirectories;
+        this.reincludedPrefixes = reincludedPrefixes;
+        this.pruning = pruning;
+    }
+
+    public static IgnorePruneFilter compile(Repository repository) throws IOException {
+        Set<String> keptDirectories = new HashSet<>();
+        List<String> reincludedPrefixes = new ArrayList<>();
+
+        DirCache dirCache = repository.readDirCache();
+        for (int i = 0; i < dirCache.getEntryCount(); i++) {
+            addParents(keptDirectories, dirCache.getEntry(i).getPathString());
+        }
+
+        File gitIgnoreFile = new File(repository.getWorkTree(), ".gitignore");
+        List<String> lines = gitIgnoreFile.exists() ? Files.readAllLines(gitIgnoreFile.toPath()) : new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (!line.startsWith("!") || line.equals("!*/")) continue;
+
+            String rule = line.substring(1);
+            int inner = rule.indexOf('/', 1);
+            boolean anchored = rule.startsWith("/") || (inner != -1 && inner < rule.length() - 1);
+            if (!anchored) {
+                return new IgnorePruneFilter(keptDirectories, reincludedPrefixes, false);
+            }
+            if (rule.startsWith("/")) {
+                rule = rule.substring(1);
+            }
+
+            int wildcard = rule.length();
+            for (char c : new char[]{'*', '?', '[', '\\'}) {
+                int index = rule.indexOf(c);
+                if (index != -1 && index < wildcard) {
+                    wildcard = index;
+                }
+            }
+
+            String literal = rule.substring(0, wildcard);
+            reincludedPrefixes.add(literal);
+            addParents(keptDirectories, literal);
+        }
+
+        return new IgnorePruneFilter(keptDirectories, reincludedPrefixes, true);
+    }
+
+    private static void addParents(Set<String> directories, String path) {
+        int slash = path.lastIndexOf('/');
+        while (slash > 0) {
+            path = path.substring(0, slash);
+            if (!directories.add(path)) return;
+            slash = path.lastIndexOf('/');
+        }
+    }
+
+    /**
+     * Whether any tracked or re-included path may exist within this directory (relative, "/" separated).
+     */
+    public boolean canContainIncluded(String directory) {
+        if (!pruning || directory.isEmpty() || keptDirectories.contains(directory)) {
+            return true;
+        }
+
+        String withSlash = directory + "/";
+        for (String prefix : reincludedPrefixes) {
+            if (directory.startsWith(prefix) || withSlash.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isPruning() {
+        return pruning;
+    }
+
+    @Override
+    public String toString() {
+        return "IgnorePruneFilter[" + reincludedPrefixes + "]";
+    }
+}
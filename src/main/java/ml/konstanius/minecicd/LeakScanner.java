@@ -0,0 +1,121 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Checks staged content for plaintext secrets before it is committed and pushed.
+ * <p>
+ * - Only index entries whose blob differs from the remote tip are scanned, identical subtrees are skipped<br>
+ * - Every secret value from secrets.yml is searched in every scanned blob, not only in the file it belongs to<br>
+ * - Secrets of files that neither exist on the server nor in the index (like the generated examples) are ignored<br>
+ * - Blobs are scanned in parallel, each one in a single streaming pass ({@link SecretReplacer#occursIn(InputStream)})
+ */
+public abstract class LeakScanner {
+    /**
+     * @return The staged paths containing a plaintext secret, sorted
+     */
+    public static List<String> scan(Repository repository) throws IOException {
+        if (!Config.getBoolean("leak-scan.enabled")) {
+            return Collections.emptyList();
+        }
+
+        DirCache index = repository.readDirCache();
+        SecretReplacer matcher = compile(index);
+        if (matcher == null) {
+            return Collections.emptyList();
+        }
+
+        List<ObjectId> candidates = new ArrayList<>();
+        List<String> candidatePaths = new ArrayList<>();
+        ObjectId remoteTip = repository.resolve(Constants.R_REMOTES + "origin/" + Config.getString("git.branch"));
+        ObjectReader reader = RepositoryManager.borrowReader();
+        try (TreeWalk walk = new TreeWalk(repository, reader)) {
+            walk.addTree(new DirCacheIterator(index));
+            if (remoteTip == null) {
+                walk.addTree(new EmptyTreeIterator());
+            } else {
+                RevCommit commit = RepositoryManager.withRevWalk(revWalk -> revWalk.parseCommit(remoteTip));
+                walk.addTree(new CanonicalTreeParser(null, reader, commit.getTree()));
+            }
+            walk.setRecursive(true);
+            walk.setFilter(TreeFilter.ANY_DIFF);
+            while (walk.next()) {
+                if (walk.getRawMode(0) == 0 || FileMode.GITLINK.equals(walk.getFileMode(0))) continue;
+                candidates.add(walk.getObjectId(0));
+                candidatePaths.add(walk.getPathString());
+            }
+        } finally {
+            RepositoryManager.releaseReader(reader);
+        }
+
+        try {
+            return IntStream.range(0, candidates.size()).parallel()
+                    .filter(i -> containsSecret(matcher, candidates.get(i)))
+                    .mapToObj(candidatePaths::get)
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean containsSecret(SecretReplacer matcher, ObjectId blob) {
+        ObjectReader reader;
+        try {
+            reader = RepositoryManager.borrowReader();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (InputStream in = reader.open(blob, Constants.OBJ_BLOB).openStream()) {
+            return matcher.occursIn(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            RepositoryManager.releaseReader(reader);
+        }
+    }
+
+    /**
+     * All relevant secret values of secrets.yml in one matcher, or null if there are none.
+     */
+    private static SecretReplacer compile(DirCache index) throws IOException {
+        HashMap<String, ArrayList<GitSecret>> secrets;
+        try {
+            secrets = GitSecret.readFromSecretsStore();
+        } catch (InvalidConfigurationException e) {
+            throw new IllegalStateException("secrets.yml is invalid, cannot check for leaked secrets: " + e.getMessage());
+        }
+
+        int minLength = Math.max(1, Config.getInt("leak-scan.min-length"));
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, ArrayList<GitSecret>> entry : secrets.entrySet()) {
+            if (!new File(".", entry.getKey()).exists() && index.getEntry(entry.getKey()) == null) continue;
+
+            for (GitSecret secret : entry.getValue()) {
+                if (secret.secret.length() < minLength) {
+                    MineCICD.log("Not checking for leaks of secret " + secret.identifier + ", it is shorter than leak-scan.min-length", Level.FINE);
+                    continue;
+                }
+                values.put(secret.secret, "");
+            }
+        }
+        return values.isEmpty() ? null : new SecretReplacer(values);
+    }
+}
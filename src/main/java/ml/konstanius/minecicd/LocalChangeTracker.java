@@ -0,0 +1,255 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.StatusCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the set of locally changed paths up to date in memory, so status / diff local / push do not have to scan
+ * the entire server root every time.
+ * <p>
+ * - Watches the directories of all tracked files, and the directories re-included by the .gitignore<br>
+ * - Changed paths are collected by a watcher thread and re-checked with a Git status limited to exactly those paths<br>
+ * - A full status runs on start, after operations that rewrite the work tree, on watcher overflow and periodically as a safety net
+ */
+public abstract class LocalChangeTracker {
+    private static WatchService watchService;
+    private static Thread watcherThread;
+    private static BukkitTask reconcileTask;
+    private static Path root;
+    private static volatile IgnorePruneFilter filter;
+
+    private static final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+    private static final Set<String> pendingPaths = ConcurrentHashMap.newKeySet();
+    private static final Set<String> dirtyPaths = ConcurrentHashMap.newKeySet();
+    private static volatile boolean reconcileNeeded = true;
+    private static volatile boolean rewatchNeeded = false;
+
+    public static boolean isActive() {
+        return watchService != null;
+    }
+
+    public static synchronized void start() {
+        stop();
+        if (!Config.getBoolean("local-change-tracking.enabled") || !GitUtils.activeRepoExists()) {
+            return;
+        }
+
+        root = new File(".").getAbsoluteFile().toPath().normalize();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            if (!registerWatchedDirectories()) {
+                throw new IllegalStateException("The .gitignore re-includes paths anywhere in the server root");
+            }
+        } catch (Exception e) {
+            MineCICD.log("Failed to start the local change tracker, falling back to full scans: " + e.getMessage(), Level.WARNING);
+            stop();
+            return;
+        }
+
+        reconcileNeeded = true;
+        watcherThread = new Thread(LocalChangeTracker::processEvents, "MineCICD-LocalChangeTracker");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+
+        long interval = Math.max(30, Config.getInt("local-change-tracking.reconcile-interval")) * 20L;
+        reconcileTask = Bukkit.getScheduler().runTaskTimerAsynchronously(MineCICD.plugin, () -> {
+            if (OperationQueue.isBusy()) return;
+
+            OperationQueue.submit(OperationQueue.Priority.BACKGROUND, "local change reconcile", () -> {
+                invalidate();
+                try {
+                    getLocalChanges();
+                } catch (Exception e) {
+                    MineCICD.log("Failed to reconcile local changes", Level.WARNING);
+                    MineCICD.logError(e);
+                }
+            });
+        }, interval, interval);
+    }
+
+    public static synchronized void stop() {
+        if (reconcileTask != null) {
+            reconcileTask.cancel();
+            reconcileTask = null;
+        }
+
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+            watchService = null;
+        }
+        watcherThread = null;
+
+        watchKeys.clear();
+        filter = null;
+        pendingPaths.clear();
+        dirtyPaths.clear();
+    }
+
+    /**
+     * Forces a full status (and re-registration of the watched directories) on the next query.
+     * Has to be called after anything that moves HEAD or rewrites the index / work tree.
+     */
+    public static void invalidate() {
+        reconcileNeeded = true;
+        rewatchNeeded = true;
+    }
+
+    public static void markPending(Collection<String> paths) {
+        pendingPaths.addAll(paths);
+    }
+
+    /**
+     * @return The locally changed paths, or null if the tracker is not (or no longer) running
+     */
+    public static synchronized Set<String> getLocalChanges() throws IOException, GitAPIException {
+        if (watchService == null) {
+            return null;
+        }
+
+        try (Git git = RepositoryManager.git()) {
+            if (reconcileNeeded) {
+                reconcileNeeded = false;
+                pendingPaths.clear();
+                if (rewatchNeeded) {
+                    rewatchNeeded = false;
+                    if (!rewatch()) {
+                        MineCICD.log("The .gitignore now re-includes paths anywhere in the server root, stopping the local change tracker", Level.INFO);
+                        stop();
+                        return null;
+                    }
+                }
+
+                Status status = git.status()
+                        .setWorkingTreeIt(new PrunedFileTreeIterator(git.getRepository(), filter))
+                        .call();
+                dirtyPaths.clear();
+                dirtyPaths.addAll(status.getUncommittedChanges());
+                dirtyPaths.addAll(status.getUntracked());
+            } else if (!pendingPaths.isEmpty()) {
+                List<String> paths = new ArrayList<>(pendingPaths);
+                pendingPaths.removeAll(paths);
+
+                StatusCommand statusCommand = git.status()
+                        .setWorkingTreeIt(new PrunedFileTreeIterator(git.getRepository(), filter));
+                for (String path : paths) {
+                    statusCommand.addPath(path);
+                }
+                Status status = statusCommand.call();
+
+                dirtyPaths.removeIf(dirty -> {
+                    for (String path : paths) {
+                        if (dirty.equals(path) || dirty.startsWith(path + "/")) {
+                            return true;
+                        }
+                    }
+                    return false;
+                });
+                dirtyPaths.addAll(status.getUncommittedChanges());
+                dirtyPaths.addAll(status.getUntracked());
+            }
+        }
+
+        return new HashSet<>(dirtyPaths);
+    }
+
+    /**
+     * @return false if the .gitignore can no longer be pruned, i.e. the tracker would have to watch everything
+     */
+    private static boolean rewatch() throws IOException {
+        for (WatchKey key : watchKeys.keySet()) {
+            key.cancel();
+        }
+        watchKeys.clear();
+        return registerWatchedDirectories();
+    }
+
+    private static boolean registerWatchedDirectories() throws IOException {
+        IgnorePruneFilter compiled = IgnorePruneFilter.compile(RepositoryManager.getRepository());
+        if (!compiled.isPruning()) {
+            return false;
+        }
+        filter = compiled;
+
+        // every directory that can contain a tracked or re-included path
+        registerRecursive(watchService, compiled, root);
+        return true;
+    }
+
+    private static void registerRecursive(WatchService service, IgnorePruneFilter filter, Path directory) throws IOException {
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) return;
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String relative = root.relativize(dir).toString().replace("\\", "/");
+                if (relative.equals(".git") || !filter.canContainIncluded(relative)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                watchKeys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void processEvents() {
+        WatchService service = watchService;
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = watchKeys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    invalidate();
+                    continue;
+                }
+                if (directory == null) continue;
+
+                Path child = directory.resolve((Path) event.context());
+                String relative = root.relativize(child).toString().replace("\\", "/");
+                if (relative.equals(".git") || relative.startsWith(".git/")) continue;
+
+                if (relative.equals(".gitignore")) {
+                    invalidate();
+                }
+
+                // the filter is gone once the tracker was stopped
+                IgnorePruneFilter currentFilter = filter;
+                if (event.kind() == ENTRY_CREATE && currentFilter != null && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        registerRecursive(service, currentFilter, child);
+                    } catch (IOException | ClosedWatchServiceException e) {
+                        invalidate();
+                    }
+                }
+
+                pendingPaths.add(relative);
+            }
+
+            if (!key.reset()) {
+                watchKeys.remove(key);
+            }
+        }
+    }
+}
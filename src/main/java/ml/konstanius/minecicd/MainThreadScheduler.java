@@ -0,0 +1,129 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs deployment work (console commands, plugin unloads / loads) on the main thread under a time budget per tick.
+ * <p>
+ * - Work is executed in submission order, as much as fits into main-thread-budget-ms per tick, the rest in the following ticks<br>
+ * - At least one piece of work runs per tick, so a single slow reload cannot stall the queue<br>
+ * - The per-tick task only runs while there is work, it is started by a submission and cancels itself once drained<br>
+ * - A {@link Tracker} collects how many ticks and how much main thread time a deployment used
+ */
+public abstract class MainThreadScheduler {
+    public static class Tracker {
+        private final Set<Long> ticks = ConcurrentHashMap.newKeySet();
+        private final AtomicLong nanos = new AtomicLong();
+
+        public int getTicks() {
+            return ticks.size();
+        }
+
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+        }
+    }
+
+    private static class Work<T> {
+        private final Tracker tracker;
+        private final Callable<T> callable;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Work(Tracker tracker, Callable<T> callable) {
+            this.tracker = tracker;
+            this.callable = callable;
+        }
+
+        private void run(long tick) {
+            long start = System.nanoTime();
+            try {
+                future.complete(callable.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                if (tracker != null) {
+                    tracker.ticks.add(tick);
+                    tracker.nanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    private static final ConcurrentLinkedQueue<Work<?>> queue = new ConcurrentLinkedQueue<>();
+    private static BukkitTask task;
+    private static long tick = 0;
+
+    public static <T> CompletableFuture<T> submit(Tracker tracker, Callable<T> callable) {
+        Work<T> work = new Work<>(tracker, callable);
+        if (Bukkit.isPrimaryThread()) {
+            // callers wait on the future, queueing it here would dead-lock the main thread
+            work.run(tick);
+            return work.future;
+        }
+        queue.add(work);
+        ensureRunning();
+        return work.future;
+    }
+
+    public static CompletableFuture<Void> submit(Tracker tracker, Runnable runnable) {
+        return submit(tracker, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Queues a console command.
+     */
+    public static CompletableFuture<Void> dispatch(Tracker tracker, String command) {
+        return submit(tracker, () -> {
+            Bukkit.dispatchCommand(Bukkit.getConsoleSender(), command);
+        });
+    }
+
+    private static synchronized void ensureRunning() {
+        if (task == null) {
+            task = Bukkit.getScheduler().runTaskTimer(MineCICD.plugin, MainThreadScheduler::drain, 0L, 1L);
+        }
+    }
+
+    private static void drain() {
+        tick++;
+        if (queue.isEmpty()) {
+            // under the same lock as ensureRunning, so work queued meanwhile either is seen here or restarts the task
+            synchronized (MainThreadScheduler.class) {
+                if (queue.isEmpty() && task != null) {
+                    task.cancel();
+                    task = null;
+                }
+            }
+            return;
+        }
+
+        long budget = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Config.getInt("main-thread-budget-ms")));
+        long start = System.nanoTime();
+        Work<?> work;
+        do {
+            work = queue.poll();
+            if (work == null) break;
+            work.run(tick);
+        } while (System.nanoTime() - start < budget);
+    }
+
+    public static synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+
+        Work<?> work;
+        while ((work = queue.poll()) != null) {
+            work.future.completeExceptionally(new IllegalStateException("MineCICD is shutting down"));
+        }
+    }
+}
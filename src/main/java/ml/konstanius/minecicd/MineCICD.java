@@ -1,5 +1,6 @@
 package ml.konstanius.minecicd;
 
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import org.apache.commons.io.FileUtils;
 import org.bukkit.Bukkit;
@@ -12,7 +13,6 @@ import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
-import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 
 import java.io.BufferedReader;
@@ -32,8 +32,8 @@ public final class MineCICD extends JavaPlugin {
     public static Logger logger = Logger.getLogger("MineCICD");
     public static Plugin plugin;
     public static HttpServer webServer;
+    public static WebhookExecutor webExecutor;
     public static HashMap<String, BossBar> busyBars = new HashMap<>();
-    public static boolean busyLock = false;
 
     @Override
     public void onEnable() {
@@ -70,19 +70,25 @@ public final class MineCICD extends JavaPlugin {
             Script.loadDefaultScript();
 
             try {
-                GitSecret.configureGitSecretFiltering(GitSecret.readFromSecretsStore());
+                GitSecret.configureGitSecretFiltering(ServerVariables.applyTo(GitSecret.readFromSecretsStore()));
             } catch (IOException | InvalidConfigurationException | InterruptedException e) {
                 throw new RuntimeException(e);
             }
 
             setupWebHook();
+            LocalChangeTracker.start();
+            PreFetchScheduler.start();
+            RemotePoller.start();
         }
 
         Objects.requireNonNull(this.getCommand("minecicd")).setExecutor(new BaseCommand());
         Objects.requireNonNull(this.getCommand("minecicd")).setTabCompleter(new BaseCommandTabCompleter());
 
-        try (Git ignored = Git.open(new File("."))) {
-        } catch (Exception ignored) {
+        if (GitUtils.activeRepoExists()) {
+            try {
+                RepositoryManager.getRepository();
+            } catch (Exception ignored) {
+            }
         }
     }
 
@@ -91,10 +97,7 @@ public final class MineCICD extends JavaPlugin {
         String path = config.getString("webhooks.path");
         if (port != 0) {
             try {
-                if (webServer != null) {
-                    webServer.stop(0);
-                    webServer = null;
-                }
+                stopWebHook();
 
                 String serverIp;
                 try {
@@ -105,9 +108,12 @@ public final class MineCICD extends JavaPlugin {
                     throw new RuntimeException(e);
                 }
 
+                webExecutor = WebhookExecutor.create();
                 webServer = HttpServer.create(new InetSocketAddress(port), 0);
-                webServer.createContext("/" + path, new WebhookHandler());
-                webServer.setExecutor(null);
+                HttpContext context = webServer.createContext("/" + path, new WebhookHandler());
+                context.getFilters().add(new WebhookExecutor.RejectFilter());
+                context.getFilters().add(new WebhookAuthFilter());
+                webServer.setExecutor(webExecutor);
                 webServer.start();
 
                 log("MineCICD is now listening on: \"http://" + serverIp + ":" + port + "/" + path + "\"", Level.INFO);
@@ -115,10 +121,18 @@ public final class MineCICD extends JavaPlugin {
                 logError(e);
             }
         } else {
-            if (webServer != null) {
-                webServer.stop(0);
-                webServer = null;
-            }
+            stopWebHook();
+        }
+    }
+
+    public static void stopWebHook() {
+        if (webServer != null) {
+            webServer.stop(0);
+            webServer = null;
+        }
+        if (webExecutor != null) {
+            webExecutor.shutdown();
+            webExecutor = null;
         }
     }
 
@@ -134,8 +148,11 @@ public final class MineCICD extends JavaPlugin {
         GitUtils.loadGitIgnore();
         Script.loadDefaultScript();
         GitUtils.setBranchIfInited();
-        GitSecret.configureGitSecretFiltering(GitSecret.readFromSecretsStore());
+        GitSecret.configureGitSecretFiltering(ServerVariables.applyTo(GitSecret.readFromSecretsStore()));
         setupWebHook();
+        LocalChangeTracker.start();
+        PreFetchScheduler.start();
+        RemotePoller.start();
     }
 
     @Override
@@ -145,9 +162,17 @@ public final class MineCICD extends JavaPlugin {
         }
 
         if (webServer != null) {
-            webServer.stop(0);
+            stopWebHook();
             log("MineCICD stopped listening.", Level.INFO);
         }
+
+        LocalChangeTracker.stop();
+        PreFetchScheduler.stop();
+        RemotePoller.stop();
+        OperationQueue.shutdown();
+        MainThreadScheduler.stop();
+        SecretFilter.unregisterAll();
+        RepositoryManager.close();
     }
 
     public static void log(String l, Level level) {
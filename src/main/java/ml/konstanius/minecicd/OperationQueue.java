@@ -0,0 +1,165 @@
+package ml.konstanius.minecicd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Serializes every operation that touches the repository or the server files on one worker thread.
+ * <p>
+ * - Queued jobs are ordered by {@link Priority}, and by submission order within the same priority<br>
+ * - Every submission returns a future instead of blocking a thread until the repository is free<br>
+ * - Jobs submitted from the worker itself (e.g. a script started by a deployment) run inline<br>
+ * - The queue is bounded, further submissions fail instead of piling up
+ */
+public abstract class OperationQueue {
+    public enum Priority {
+        WEBHOOK_DEPLOY,
+        QUERY,
+        MANUAL_PULL,
+        PUSH,
+        SCRIPT,
+        COMMAND,
+        BACKGROUND
+    }
+
+    private static final AtomicLong sequence = new AtomicLong();
+    private static ThreadPoolExecutor executor;
+    private static volatile Thread worker;
+    private static volatile String currentOperation;
+
+    private static final class Job<T> implements Runnable, Comparable<Job<?>> {
+        private final Priority priority;
+        private final long sequence;
+        private final String name;
+        private final Callable<T> operation;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Job(Priority priority, String name, Callable<T> operation) {
+            this.priority = priority;
+            this.sequence = OperationQueue.sequence.getAndIncrement();
+            this.name = name;
+            this.operation = operation;
+        }
+
+        @Override
+        public void run() {
+            String outer = currentOperation;
+            currentOperation = name;
+            try {
+                future.complete(operation.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                currentOperation = outer;
+            }
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "MineCICD-Operations");
+                thread.setDaemon(true);
+                worker = thread;
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    public static <T> CompletableFuture<T> submit(Priority priority, String name, Callable<T> operation) {
+        Job<T> job = new Job<>(priority, name, operation);
+        if (isWorkerThread()) {
+            job.run();
+            return job.future;
+        }
+
+        ThreadPoolExecutor pool = getExecutor();
+        if (isSaturated()) {
+            job.future.completeExceptionally(new IllegalStateException("Too many operations are queued, try again later"));
+            return job.future;
+        }
+
+        try {
+            pool.execute(job);
+        } catch (RejectedExecutionException e) {
+            job.future.completeExceptionally(new IllegalStateException("MineCICD is shutting down"));
+        }
+        return job.future;
+    }
+
+    public static CompletableFuture<Void> submit(Priority priority, String name, Runnable operation) {
+        return submit(priority, name, () -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    /**
+     * Whether the current thread is the operation worker, i.e. repository access is already serialized.
+     */
+    public static boolean isWorkerThread() {
+        return Thread.currentThread() == worker;
+    }
+
+    /**
+     * Whether an operation is running or waiting.
+     */
+    public static boolean isBusy() {
+        return currentOperation != null || getQueueDepth() > 0;
+    }
+
+    /**
+     * Amount of operations waiting, excluding the running one.
+     */
+    public static int getQueueDepth() {
+        ThreadPoolExecutor pool = executor;
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /**
+     * Whether further submissions would currently be rejected.
+     */
+    public static boolean isSaturated() {
+        return getQueueDepth() >= Math.max(1, Config.getInt("operations.max-queued"));
+    }
+
+    public static String getCurrentOperation() {
+        return currentOperation;
+    }
+
+    public static synchronized void shutdown() {
+        if (executor == null) return;
+
+        ThreadPoolExecutor pool = executor;
+        executor = null;
+
+        List<Runnable> dropped = new ArrayList<>();
+        pool.getQueue().drainTo(dropped);
+        for (Runnable job : dropped) {
+            ((Job<?>) job).future.completeExceptionally(new IllegalStateException("MineCICD is shutting down"));
+        }
+
+        pool.shutdown();
+        if (isWorkerThread()) return;
+
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                MineCICD.log("Interrupting running operation " + currentOperation, Level.WARNING);
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
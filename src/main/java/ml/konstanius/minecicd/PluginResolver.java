@@ -0,0 +1,147 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.InvalidDescriptionException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Resolves plugin jars to the plugin they contain, by reading the plugin.yml from the jar instead of guessing
+ * from the file name.
+ * <p>
+ * - Only the zip central directory and the plugin.yml entry are read<br>
+ * - Results are cached per path, and re-read once the file key, size or modification time changes<br>
+ * - Loaded plugins are looked up through a case-insensitive name index
+ */
+public abstract class PluginResolver {
+    public static class PluginInfo {
+        public final File file;
+        public final String name;
+        public final String version;
+        public final List<String> depend;
+        public final List<String> softDepend;
+        public final List<String> loadBefore;
+
+        private PluginInfo(File file, PluginDescriptionFile description) {
+            this.file = file;
+            this.name = description.getName();
+            this.version = description.getVersion();
+            this.depend = copy(description.getDepend());
+            this.softDepend = copy(description.getSoftDepend());
+            this.loadBefore = copy(description.getLoadBefore());
+        }
+
+        private static List<String> copy(List<String> list) {
+            return list == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(list));
+        }
+    }
+
+    private static class CacheEntry {
+        private final Object fileKey;
+        private final long size;
+        private final long modified;
+        private final PluginInfo info;
+
+        private CacheEntry(BasicFileAttributes attributes, PluginInfo info) {
+            this.fileKey = attributes.fileKey();
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.info = info;
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return Objects.equals(fileKey, attributes.fileKey())
+                    && size == attributes.size()
+                    && modified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    private static final Map<String, CacheEntry> descriptions = new ConcurrentHashMap<>();
+    private static final Map<String, Plugin> loadedByName = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the repository path is a jar directly in the plugins folder, i.e. one the server would load.
+     */
+    public static boolean isPluginJar(String path) {
+        return path.startsWith("plugins/") && path.endsWith(".jar") && path.indexOf('/', "plugins/".length()) == -1;
+    }
+
+    /**
+     * Reads the plugin.yml of the jar, or returns null if the file does not exist or is no valid plugin.
+     */
+    public static PluginInfo describe(File jar) {
+        String key = jar.getAbsoluteFile().toPath().normalize().toString();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(jar.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            descriptions.remove(key);
+            return null;
+        }
+
+        CacheEntry cached = descriptions.get(key);
+        if (cached != null && cached.matches(attributes)) {
+            return cached.info;
+        }
+
+        PluginInfo info = null;
+        try (ZipFile zip = new ZipFile(jar)) {
+            ZipEntry entry = zip.getEntry("plugin.yml");
+            if (entry != null) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    info = new PluginInfo(jar, new PluginDescriptionFile(in));
+                }
+            }
+        } catch (IOException | InvalidDescriptionException e) {
+            MineCICD.log("Could not read plugin.yml of " + jar.getPath() + ": " + e.getMessage(), Level.WARNING);
+        }
+
+        descriptions.put(key, new CacheEntry(attributes, info));
+        return info;
+    }
+
+    /**
+     * Finds a loaded plugin by its exact name, ignoring case.
+     */
+    public static Plugin findLoaded(String name) {
+        Plugin plugin = Bukkit.getPluginManager().getPlugin(name);
+        if (plugin != null) {
+            return plugin;
+        }
+
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        plugin = loadedByName.get(lowerName);
+        if (plugin == null || Bukkit.getPluginManager().getPlugin(plugin.getName()) != plugin) {
+            refreshIndex();
+            plugin = loadedByName.get(lowerName);
+        }
+        return plugin;
+    }
+
+    public static void refreshIndex() {
+        Map<String, Plugin> index = new HashMap<>();
+        for (Plugin plugin : Bukkit.getPluginManager().getPlugins()) {
+            index.put(plugin.getName().toLowerCase(Locale.ROOT), plugin);
+        }
+        loadedByName.clear();
+        loadedByName.putAll(index);
+    }
+
+    /**
+     * Whether MineCICD must never unload / load this plugin itself, as that would break the running deployment.
+     */
+    public static boolean isProtected(String name) {
+        return name.equalsIgnoreCase(MineCICD.plugin.getName()) || name.toLowerCase(Locale.ROOT).startsWith("plugman");
+    }
+}
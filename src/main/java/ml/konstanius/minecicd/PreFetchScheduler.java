@@ -0,0 +1,94 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+/**
+ * Fetches the configured branch in the background, so webhook and manual pulls usually find all objects
+ * already present locally and only have to move refs and update the work tree.
+ * <p>
+ * Every run is rescheduled with a random jitter, so many servers sharing one remote do not fetch in lockstep.
+ */
+public abstract class PreFetchScheduler {
+    private static BukkitTask task;
+    private static volatile long lastFetchTime = 0;
+    private static volatile String lastFetchedRevision = "";
+
+    public static synchronized void start() {
+        stop();
+        if (!Config.getBoolean("pre-fetch.enabled") || !GitUtils.activeRepoExists()) {
+            return;
+        }
+
+        scheduleNext();
+    }
+
+    public static synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private static synchronized void scheduleNext() {
+        long interval = Math.max(10, Config.getInt("pre-fetch.interval"));
+        long jitter = Math.max(0, Config.getInt("pre-fetch.jitter"));
+        long delay = interval + (jitter == 0 ? 0 : ThreadLocalRandom.current().nextLong(jitter + 1));
+
+        task = Bukkit.getScheduler().runTaskLaterAsynchronously(MineCICD.plugin, PreFetchScheduler::run, delay * 20L);
+    }
+
+    private static void run() {
+        if (OperationQueue.isBusy() || !GitUtils.activeRepoExists()) {
+            rescheduleIfRunning();
+            return;
+        }
+
+        OperationQueue.submit(OperationQueue.Priority.BACKGROUND, "pre-fetch", () -> {
+            String revision = GitUtils.getLatestRemoteRevision();
+            if (!revision.isEmpty()) {
+                lastFetchedRevision = revision;
+                lastFetchTime = System.currentTimeMillis();
+            }
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                MineCICD.log("Pre-fetch failed: " + e.getMessage(), Level.WARNING);
+            }
+            rescheduleIfRunning();
+        });
+    }
+
+    private static synchronized void rescheduleIfRunning() {
+        if (task != null) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Whether the remote tracking branch was updated recently enough to be used without fetching again.
+     */
+    public static boolean isFresh() {
+        if (task == null || lastFetchTime == 0) {
+            return false;
+        }
+
+        long maxAge = (Math.max(10, Config.getInt("pre-fetch.interval")) + Math.max(0, Config.getInt("pre-fetch.jitter"))) * 1000L;
+        return System.currentTimeMillis() - lastFetchTime <= maxAge;
+    }
+
+    /**
+     * Seconds since the last successful pre-fetch, or "N/A" if pre-fetching is disabled or has not succeeded yet.
+     */
+    public static String getLag() {
+        if (task == null || lastFetchTime == 0) {
+            return "N/A";
+        }
+
+        long seconds = (System.currentTimeMillis() - lastFetchTime) / 1000;
+        String revision = lastFetchedRevision.length() > 7 ? lastFetchedRevision.substring(0, 7) : lastFetchedRevision;
+        return seconds + "s ago (" + revision + ")";
+    }
+}
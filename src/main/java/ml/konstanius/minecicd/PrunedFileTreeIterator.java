@@ -0,0 +1,48 @@
+package ml.konstanius.minecicd;
+
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Work tree iterator that does not descend into directories excluded by an {@link IgnorePruneFilter}.
+ * AddCommand and StatusCommand do not take a TreeFilter, but they do take a custom work tree iterator.
+ */
+public class PrunedFileTreeIterator extends FileTreeIterator {
+    private final IgnorePruneFilter filter;
+
+    public PrunedFileTreeIterator(Repository repository, IgnorePruneFilter filter) {
+        super(repository);
+        this.filter = filter;
+    }
+
+    public PrunedFileTreeIterator(Repository repository) throws IOException {
+        this(repository, IgnorePruneFilter.compile(repository));
+    }
+
+    protected PrunedFileTreeIterator(PrunedFileTreeIterator parent, File directory) {
+        super(parent, directory, parent.fs, parent.fileModeStrategy);
+        this.filter = parent.filter;
+    }
+
+    @Override
+    public AbstractTreeIterator createSubtreeIterator(ObjectReader reader) throws IOException {
+        if (!filter.canContainIncluded(getEntryPathString())) {
+            byte[] childPath = Arrays.copyOf(path, pathLen + 1);
+            childPath[pathLen] = '/';
+            return new EmptyTreeIterator(this, childPath, pathLen + 1);
+        }
+        return super.createSubtreeIterator(reader);
+    }
+
+    @Override
+    protected AbstractTreeIterator enterSubtree() {
+        return new PrunedFileTreeIterator(this, ((FileEntry) current()).getFile());
+    }
+}
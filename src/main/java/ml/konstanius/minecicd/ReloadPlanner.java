@@ -0,0 +1,173 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.util.*;
+import java.util.logging.Level;
+
+import static ml.konstanius.minecicd.MineCICD.log;
+
+/**
+ * Orders the plugin unloads / loads of experimental jar loading by their depend, softdepend and loadbefore relations.
+ * <p>
+ * - Loaded plugins that (transitively) depend on an unloaded plugin are unloaded and loaded again as well<br>
+ * - Unloading happens in reverse dependency order (dependents first), loading in dependency order (libraries first)<br>
+ * - Plugins in a dependency cycle keep their original order, after all others
+ */
+public class ReloadPlanner {
+    private static class Node {
+        private final String name;
+        private final List<String> depend;
+        private final List<String> softDepend;
+        private final List<String> loadBefore;
+
+        private Node(String name, List<String> depend, List<String> softDepend, List<String> loadBefore) {
+            this.name = name;
+            this.depend = depend;
+            this.softDepend = softDepend;
+            this.loadBefore = loadBefore;
+        }
+
+        private static Node of(PluginResolver.PluginInfo info) {
+            return new Node(info.name, info.depend, info.softDepend, info.loadBefore);
+        }
+
+        private static Node of(Plugin plugin) {
+            return new Node(plugin.getName(),
+                    orEmpty(plugin.getDescription().getDepend()),
+                    orEmpty(plugin.getDescription().getSoftDepend()),
+                    orEmpty(plugin.getDescription().getLoadBefore()));
+        }
+
+        private static List<String> orEmpty(List<String> list) {
+            return list == null ? Collections.emptyList() : list;
+        }
+    }
+
+    private final Map<String, Node> unload = new LinkedHashMap<>();
+    private final Map<String, Node> reloadedDependents = new LinkedHashMap<>();
+
+    /**
+     * Has to be created before the jars are replaced, while the affected plugins are still loaded.
+     *
+     * @param removed Plugins of jars that are deleted or replaced, described from the old jars
+     */
+    public ReloadPlanner(List<PluginResolver.PluginInfo> removed) {
+        for (PluginResolver.PluginInfo info : removed) {
+            if (PluginResolver.findLoaded(info.name) != null) {
+                unload.put(key(info.name), Node.of(info));
+            }
+        }
+
+        // loaded plugins depending on anything that is unloaded have to be unloaded first and loaded again afterwards
+        boolean grew = !unload.isEmpty();
+        while (grew) {
+            grew = false;
+            for (Plugin plugin : Bukkit.getPluginManager().getPlugins()) {
+                String key = key(plugin.getName());
+                if (unload.containsKey(key) || PluginResolver.isProtected(plugin.getName())) continue;
+
+                Node node = Node.of(plugin);
+                for (String dependency : node.depend) {
+                    if (unload.containsKey(key(dependency))) {
+                        unload.put(key, node);
+                        reloadedDependents.put(key, node);
+                        grew = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dependents first, so no plugin is left running without its dependencies.
+     */
+    public List<String> getUnloadOrder() {
+        List<String> order = sort(unload);
+        Collections.reverse(order);
+        return order;
+    }
+
+    /**
+     * Dependencies first, including the dependents that were only unloaded because of a changed dependency.
+     *
+     * @param added Plugins of jars that were added or replaced, described from the new jars
+     */
+    public List<String> getLoadOrder(List<PluginResolver.PluginInfo> added) {
+        Map<String, Node> load = new LinkedHashMap<>();
+        for (PluginResolver.PluginInfo info : added) {
+            if (!PluginResolver.isProtected(info.name)) {
+                load.put(key(info.name), Node.of(info));
+            }
+        }
+        for (Map.Entry<String, Node> entry : reloadedDependents.entrySet()) {
+            load.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        return sort(load);
+    }
+
+    /**
+     * Kahn's algorithm, nodes without pending dependencies are emitted in insertion order.
+     */
+    private static List<String> sort(Map<String, Node> nodes) {
+        Map<String, Set<String>> successors = new HashMap<>();
+        Map<String, Integer> pending = new HashMap<>();
+        for (String key : nodes.keySet()) {
+            successors.put(key, new LinkedHashSet<>());
+            pending.put(key, 0);
+        }
+
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            String key = entry.getKey();
+            Node node = entry.getValue();
+
+            List<String> before = new ArrayList<>(node.depend);
+            before.addAll(node.softDepend);
+            for (String dependency : before) {
+                addEdge(successors, pending, key(dependency), key);
+            }
+            for (String dependent : node.loadBefore) {
+                addEdge(successors, pending, key, key(dependent));
+            }
+        }
+
+        List<String> order = new ArrayList<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (String key : nodes.keySet()) {
+            if (pending.get(key) == 0) ready.add(key);
+        }
+        while (!ready.isEmpty()) {
+            String key = ready.poll();
+            order.add(nodes.get(key).name);
+            for (String successor : successors.get(key)) {
+                int remaining = pending.get(successor) - 1;
+                pending.put(successor, remaining);
+                if (remaining == 0) ready.add(successor);
+            }
+        }
+
+        if (order.size() < nodes.size()) {
+            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                if (pending.get(entry.getKey()) > 0) {
+                    log("Plugin " + entry.getValue().name + " is part of a dependency cycle, keeping its original order", Level.WARNING);
+                    order.add(entry.getValue().name);
+                }
+            }
+        }
+        return order;
+    }
+
+    private static void addEdge(Map<String, Set<String>> successors, Map<String, Integer> pending, String from, String to) {
+        // relations to plugins outside of this plan are already satisfied
+        if (!successors.containsKey(from) || !successors.containsKey(to) || from.equals(to)) return;
+        if (successors.get(from).add(to)) {
+            pending.put(to, pending.get(to) + 1);
+        }
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,78 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.logging.Level;
+
+/**
+ * Deploy mode for servers the webhook listener cannot be reached on (e.g. behind NAT).
+ * <p>
+ * Every check only asks the remote for its ref advertisement (ls-remote), no objects are transferred.
+ * The full deployment is only run once the branch tip moved away from the local HEAD.
+ * Failed checks back off exponentially up to the configured maximum.
+ */
+public abstract class RemotePoller {
+    private static BukkitTask task;
+    private static long currentDelay;
+
+    public static synchronized void start() {
+        stop();
+        if (!Config.getBoolean("polling.enabled") || !GitUtils.activeRepoExists()) {
+            return;
+        }
+
+        currentDelay = getInterval();
+        schedule(currentDelay);
+        MineCICD.log("MineCICD is now polling the remote every " + currentDelay + " seconds", Level.INFO);
+    }
+
+    public static synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private static long getInterval() {
+        return Math.max(5, Config.getInt("polling.interval"));
+    }
+
+    private static void schedule(long seconds) {
+        task = Bukkit.getScheduler().runTaskLaterAsynchronously(MineCICD.plugin, RemotePoller::poll, seconds * 20L);
+    }
+
+    private static void poll() {
+        long nextDelay = getInterval();
+        try {
+            if (GitUtils.activeRepoExists()) {
+                ObjectId remoteTip;
+                ObjectId head;
+                try (Git git = RepositoryManager.git()) {
+                    remoteTip = GitUtils.lsRemoteTip(git);
+                    head = git.getRepository().resolve(Constants.HEAD);
+                }
+
+                // failed deployments are retried on the next check, overlapping requests are merged by the DeployCoalescer
+                if (remoteTip != null && !remoteTip.equals(head)) {
+                    MineCICD.log("Remote branch moved to " + remoteTip.getName() + ", deploying", Level.INFO);
+                    DeployCoalescer.request(null);
+                }
+            }
+        } catch (Exception e) {
+            nextDelay = Math.min(Math.max(getInterval(), Config.getInt("polling.max-backoff")), currentDelay * 2);
+            MineCICD.log("Polling the remote failed, next check in " + nextDelay + " seconds", Level.WARNING);
+            MineCICD.logError(e);
+        } finally {
+            synchronized (RemotePoller.class) {
+                if (task != null) {
+                    currentDelay = nextDelay;
+                    schedule(currentDelay);
+                }
+            }
+        }
+    }
+}
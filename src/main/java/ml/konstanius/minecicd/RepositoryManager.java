@@ -0,0 +1,89 @@
+package ml.konstanius.minecicd;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Owns the one long-lived JGit Repository of the server root.<br>
+ * - {@link #git()} hands out Git wrappers that do NOT close the shared repository, so try-with-resources stays safe<br>
+ * - ObjectReaders are pooled and reused between calls, RevWalks are created on top of a pooled reader<br>
+ * - {@link #close()} has to be called whenever the .git directory is (re)created or deleted, and on disable
+ */
+public abstract class RepositoryManager {
+    private static final int MAX_POOLED_READERS = 4;
+
+    private static Repository repository;
+    private static final ConcurrentLinkedQueue<ObjectReader> readerPool = new ConcurrentLinkedQueue<>();
+    private static final Set<ObjectReader> issuedReaders = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public interface RevWalkFunction<T> {
+        T apply(RevWalk walk) throws IOException;
+    }
+
+    public static synchronized Repository getRepository() throws IOException {
+        if (repository == null) {
+            repository = new RepositoryBuilder()
+                    .setGitDir(new File(new File("."), ".git"))
+                    .setMustExist(true)
+                    .build();
+        }
+        return repository;
+    }
+
+    public static Git git() throws IOException {
+        return Git.wrap(getRepository());
+    }
+
+    public static ObjectReader borrowReader() throws IOException {
+        ObjectReader reader = readerPool.poll();
+        if (reader != null) {
+            return reader;
+        }
+
+        reader = getRepository().newObjectReader();
+        issuedReaders.add(reader);
+        return reader;
+    }
+
+    public static void releaseReader(ObjectReader reader) {
+        // readers of a repository that was closed in the meantime are not pooled again
+        if (issuedReaders.contains(reader) && readerPool.size() < MAX_POOLED_READERS) {
+            readerPool.offer(reader);
+        } else {
+            issuedReaders.remove(reader);
+            reader.close();
+        }
+    }
+
+    public static <T> T withRevWalk(RevWalkFunction<T> function) throws IOException {
+        ObjectReader reader = borrowReader();
+        try (RevWalk walk = new RevWalk(reader)) {
+            return function.apply(walk);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    public static synchronized void close() {
+        ObjectReader reader;
+        while ((reader = readerPool.poll()) != null) {
+            reader.close();
+        }
+        issuedReaders.clear();
+
+        if (repository != null) {
+            repository.close();
+            repository = null;
+        }
+    }
+}
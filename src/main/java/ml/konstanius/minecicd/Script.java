@@ -1,24 +1,27 @@
 package ml.konstanius.minecicd;
 
-import org.bukkit.Bukkit;
 import org.bukkit.boss.BarColor;
 import org.bukkit.boss.BarStyle;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Objects;
-import java.util.Scanner;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static ml.konstanius.minecicd.Messages.getMessage;
 import static ml.konstanius.minecicd.MineCICD.plugin;
 
 public abstract class Script {
+    private static final Map<String, Pattern> globPatterns = new ConcurrentHashMap<>();
+
     public static void loadDefaultScript() {
         File scriptsDir = new File(plugin.getDataFolder(), "scripts");
         File exampleScriptFile = new File(scriptsDir, "example_script.sh");
@@ -36,111 +39,330 @@ public abstract class Script {
         }
     }
 
-    public static void run(String script) throws Exception {
-        boolean ownsBusy = !MineCICD.busyLock;
-        MineCICD.busyLock = true;
+    private static final Pattern STAGE_HEADER = Pattern.compile("^\\[stage\\s+([\\w.-]+)(?:\\s+after\\s+([\\w.-]+(?:\\s*,\\s*[\\w.-]+)*))?\\s*]$");
+
+    private static class Step {
+        private final int lineNumber;
+        private final String line;
+        private final String guard;
+        private final String command;
+
+        private Step(int lineNumber, String line, String guard, String command) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.guard = guard;
+            this.command = command;
+        }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final List<String> after;
+        private final List<Step> steps = new ArrayList<>();
+        private boolean console = false;
 
+        private Stage(String name, List<String> after) {
+            this.name = name;
+            this.after = after;
+        }
+    }
+
+    /**
+     * Runs the script, blocking the calling thread, which must not be the main thread.
+     * <p>
+     * - Console commands are handed to the {@link MainThreadScheduler}, one step at a time<br>
+     * - System shell steps ("! ") run off the main thread, their output is streamed into the server log<br>
+     * - Every step is limited to scripts.step-timeout seconds, a stage stops at its first failing step<br>
+     * - Steps prefixed with "@changed &lt;glob&gt;[,&lt;glob&gt;...] " only run if a changed path matches one of the globs<br>
+     * - "[stage &lt;name&gt; after &lt;stage&gt;[,&lt;stage&gt;...]]" starts a stage, stages run as soon as the stages they
+     * come after succeeded, up to scripts.parallelism at a time. Stages containing console commands never run at
+     * the same time as each other. Lines before the first stage header form their own stage
+     *
+     * @param changedPaths Paths changed by the deployment, or null for a manual run, which runs every step
+     */
+    public static void run(String script, Collection<String> changedPaths) throws Exception {
         String bar = MineCICD.addBar(Messages.getCleanMessage("bossbar-script", true), BarColor.BLUE, BarStyle.SOLID);
         try {
             File scriptsFolder = new File(plugin.getDataFolder(), "scripts");
             File scriptFile = new File(scriptsFolder, script + ".sh");
 
-            List<String> lines = Files.readAllLines(scriptFile.toPath().toAbsolutePath());
+            List<Stage> stages = parse(script, Files.readAllLines(scriptFile.toPath().toAbsolutePath()));
+            long timeout = Math.max(1, Config.getInt("scripts.step-timeout"));
+            MainThreadScheduler.Tracker tracker = new MainThreadScheduler.Tracker();
 
-            final int[] result = {-1};
-            final String[] output = {""};
-            Bukkit.getScheduler().runTask(plugin, () -> {
-                try {
-                    for (int i = 0; i < lines.size(); i++) {
-                        String line = lines.get(i);
-                        if (line.startsWith("#")) {
-                            continue;
-                        }
+            if (stages.size() == 1) {
+                runStage(script, stages.get(0), changedPaths, timeout, tracker);
+            } else {
+                runStages(script, stages, changedPaths, timeout, tracker);
+            }
 
-                        if (line.startsWith("! ")) {
-                            try {
-                                ProcessBuilder b = new ProcessBuilder(line.substring(3).split(" "));
-                                b.inheritIO();
-                                Process p = b.start();
-                                result[0] = p.waitFor();
-                            } catch (Exception e) {
-                                int finalI = i;
-                                output[0] = getMessage(
-                                        "script-error-console",
-                                        true,
-                                        new HashMap<String, String>() {{
-                                            put("script", script);
-                                            put("line", String.valueOf(finalI + 1));
-                                            put("command", line);
-                                            put("error", e.getMessage());
-                                        }}
-                                );
-                                result[0] = 1;
-                                break;
+            MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-script-success", true), BarColor.GREEN, BarStyle.SOLID);
+            MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
+        } catch (Exception e) {
+            MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-script-failed", true), BarColor.RED, BarStyle.SEGMENTED_12);
+            MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
+            throw e;
+        }
+    }
+
+    /**
+     * Splits the script into its stages, in dependency order, and validates the stage graph.
+     */
+    private static List<Stage> parse(String script, List<String> lines) throws Exception {
+        Map<String, Stage> stages = new LinkedHashMap<>();
+        Stage current = null;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+
+            Matcher header = STAGE_HEADER.matcher(line.trim());
+            if (header.matches()) {
+                String name = header.group(1);
+                if (stages.containsKey(name)) {
+                    throw new Exception("Duplicate stage " + name + " in script " + script + " line " + (i + 1));
+                }
+                List<String> after = header.group(2) == null
+                        ? Collections.emptyList()
+                        : Arrays.asList(header.group(2).split("\\s*,\\s*"));
+                current = new Stage(name, after);
+                stages.put(name, current);
+                continue;
+            }
+
+            if (current == null) {
+                current = new Stage("", Collections.emptyList());
+                stages.put("", current);
+            }
+
+            String guard = null;
+            String command = line;
+            if (command.startsWith("@changed ")) {
+                String[] parts = command.substring("@changed ".length()).trim().split("\\s+", 2);
+                if (parts.length < 2) {
+                    throw new Exception("Missing step after @changed in script " + script + " line " + (i + 1));
+                }
+                guard = parts[0];
+                command = parts[1];
+            }
+            current.steps.add(new Step(i + 1, line, guard, command));
+            current.console |= !command.startsWith("! ");
+        }
+
+        // depth first, so every stage comes after the stages it depends on
+        List<Stage> ordered = new ArrayList<>();
+        Set<String> visiting = new HashSet<>();
+        Set<String> done = new HashSet<>();
+        for (Stage stage : stages.values()) {
+            order(script, stage, stages, visiting, done, ordered);
+        }
+        if (ordered.isEmpty()) {
+            ordered.add(new Stage("", Collections.emptyList()));
+        }
+        return ordered;
+    }
+
+    private static void order(String script, Stage stage, Map<String, Stage> stages, Set<String> visiting, Set<String> done, List<Stage> ordered) throws Exception {
+        if (done.contains(stage.name)) return;
+        if (!visiting.add(stage.name)) {
+            throw new Exception("Stage " + stage.name + " in script " + script + " is part of a dependency cycle");
+        }
+        for (String dependency : stage.after) {
+            Stage before = stages.get(dependency);
+            if (before == null) {
+                throw new Exception("Stage " + stage.name + " in script " + script + " comes after unknown stage " + dependency);
+            }
+            order(script, before, stages, visiting, done, ordered);
+        }
+        visiting.remove(stage.name);
+        done.add(stage.name);
+        ordered.add(stage);
+    }
+
+    private static void runStages(String script, List<Stage> stages, Collection<String> changedPaths, long timeout, MainThreadScheduler.Tracker tracker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Config.getInt("scripts.parallelism")), runnable -> {
+            Thread thread = new Thread(runnable, "MineCICD Script Stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Object consoleLock = new Object();
+
+        try {
+            Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+            for (Stage stage : stages) {
+                CompletableFuture<?>[] dependencies = new CompletableFuture<?>[stage.after.size()];
+                for (int i = 0; i < dependencies.length; i++) {
+                    dependencies[i] = futures.get(stage.after.get(i));
+                }
+
+                // a failed dependency fails this future as well, without running the stage
+                futures.put(stage.name, CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+                    try {
+                        if (stage.console) {
+                            synchronized (consoleLock) {
+                                runStage(script, stage, changedPaths, timeout, tracker);
                             }
                         } else {
-                            int finalI = i;
-                            Bukkit.getScheduler().runTask(plugin, () -> {
-                                try {
-                                    Bukkit.dispatchCommand(Bukkit.getConsoleSender(), line);
-                                    result[0] = 0;
-                                } catch (Exception e) {
-                                    output[0] = getMessage(
-                                            "script-error-console",
-                                            true,
-                                            new HashMap<String, String>() {{
-                                                put("script", script);
-                                                put("line", String.valueOf(finalI + 1));
-                                                put("command", line);
-                                                put("error", e.getMessage());
-                                            }}
-                                    );
-                                    result[0] = 1;
-                                }
-                            }).getOwner();
-                            if (result[0] == 1) {
-                                break;
-                            }
+                            runStage(script, stage, changedPaths, timeout, tracker);
                         }
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, pool));
+            }
 
-                        if (result[0] != 0) {
-                            int finalI = i;
-                            output[0] = getMessage(
-                                    "script-error-console",
-                                    true,
-                                    new HashMap<String, String>() {{
-                                        put("script", script);
-                                        put("line", String.valueOf(finalI + 1));
-                                        put("command", line);
-                                        put("error", "Exited with exit code " + result[0]);
-                                    }}
-                            );
-                            break;
-                        }
+            Exception failure = null;
+            for (CompletableFuture<Void> future : futures.values()) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                     }
-                } catch (Exception e) {
-                    MineCICD.logError(e);
                 }
-            });
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void runStage(String script, Stage stage, Collection<String> changedPaths, long timeout, MainThreadScheduler.Tracker tracker) throws Exception {
+        if (!stage.name.isEmpty()) {
+            MineCICD.log("[" + script + "] Running stage " + stage.name, Level.INFO);
+        }
 
-            while (result[0] == -1) {
-                Thread.sleep(100);
+        for (Step step : stage.steps) {
+            if (step.guard != null && changedPaths != null && !anyMatches(step.guard, changedPaths)) {
+                MineCICD.log("[" + script + "] Skipping line " + step.lineNumber + ", no changes in " + step.guard, Level.INFO);
+                continue;
             }
 
-            if (result[0] != 0) {
-                throw new Exception(output[0]);
+            String error;
+            try {
+                if (step.command.startsWith("! ")) {
+                    error = runShell(script, step.command.substring(2).trim(), timeout);
+                } else {
+                    error = runConsole(tracker, step.command, timeout);
+                }
+            } catch (ExecutionException e) {
+                error = e.getCause().getMessage();
+            } catch (Exception e) {
+                error = e.getMessage();
             }
 
-            MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-script-success", true), BarColor.GREEN, BarStyle.SOLID);
-            MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
-        } catch (Exception e) {
-            MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-script-failed", true), BarColor.RED, BarStyle.SEGMENTED_12);
-            MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
-            throw e;
-        } finally {
-            if (ownsBusy) {
-                MineCICD.busyLock = false;
+            if (error != null) {
+                String finalError = error;
+                throw new Exception(getMessage(
+                        "script-error-console",
+                        true,
+                        new HashMap<String, String>() {{
+                            put("script", script);
+                            put("line", String.valueOf(step.lineNumber));
+                            put("command", step.line);
+                            put("error", finalError);
+                        }}
+                ));
+            }
+        }
+    }
+
+    private static boolean anyMatches(String globs, Collection<String> paths) {
+        for (String glob : globs.split(",")) {
+            if (glob.isEmpty()) continue;
+            Pattern pattern = globPatterns.computeIfAbsent(glob, Script::compileGlob);
+            for (String path : paths) {
+                if (pattern.matcher(path).matches()) {
+                    return true;
+                }
             }
         }
+        return false;
+    }
+
+    /**
+     * "**" matches across directories, "*" and "?" within one path segment, a trailing "/" matches everything below.
+     */
+    private static Pattern compileGlob(String glob) {
+        if (glob.endsWith("/")) {
+            glob += "**";
+        }
+
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    // "**/" also matches no directory at all
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return null on success, otherwise the error
+     */
+    private static String runConsole(MainThreadScheduler.Tracker tracker, String command, long timeout) throws Exception {
+        try {
+            MainThreadScheduler.dispatch(tracker, command).get(timeout, TimeUnit.SECONDS);
+            return null;
+        } catch (TimeoutException e) {
+            return "Timed out after " + timeout + " seconds";
+        }
+    }
+
+    /**
+     * @return null on success, otherwise the error
+     */
+    private static String runShell(String script, String command, long timeout) throws Exception {
+        ProcessBuilder builder = new ProcessBuilder(command.split("\\s+"));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        process.getOutputStream().close();
+
+        // drain the output while waiting, a full pipe buffer would block the process
+        Thread pump = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+                String output;
+                while ((output = reader.readLine()) != null) {
+                    MineCICD.log("[" + script + "] " + output, Level.INFO);
+                }
+            } catch (IOException ignored) {
+                // the stream is closed when the process is destroyed
+            }
+        }, "MineCICD Script Output");
+        pump.setDaemon(true);
+        pump.start();
+
+        try {
+            if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return "Timed out after " + timeout + " seconds";
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+        pump.join(1000);
+
+        int exitCode = process.exitValue();
+        return exitCode == 0 ? null : "Exited with exit code " + exitCode;
     }
 }
@@ -0,0 +1,109 @@
+package ml.konstanius.minecicd;
+
+import org.eclipse.jgit.attributes.FilterCommand;
+import org.eclipse.jgit.attributes.FilterCommandRegistry;
+import org.eclipse.jgit.lib.Constants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * In-process clean / smudge filters for secrets, registered as JGit builtin filter commands.
+ * <p>
+ * - JGit uses them for every filter section with useJGitBuiltin = true, no external process is started<br>
+ * - The clean / smudge commands in .git/config stay in place for the git command line, which ignores useJGitBuiltin<br>
+ * - Filters are registered as jgit://builtin/&lt;file path&gt;/clean and jgit://builtin/&lt;file path&gt;/smudge<br>
+ * - All secrets of a file are replaced in a single streaming pass, see {@link SecretReplacer}
+ */
+public abstract class SecretFilter {
+    private static final Map<String, String> registered = new HashMap<>();
+
+    /**
+     * Registers the filters of all files in secrets, and unregisters the filters of files that no longer have secrets.
+     * Filters of files whose secrets did not change are kept as they are.
+     */
+    public static synchronized void register(Map<String, ArrayList<GitSecret>> secrets) {
+        Map<String, String> hashes = new HashMap<>();
+        for (Map.Entry<String, ArrayList<GitSecret>> entry : secrets.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+
+            String filePath = entry.getKey();
+            String hash = GitSecret.hash(entry.getValue());
+            hashes.put(filePath, hash);
+            if (hash.equals(registered.get(filePath))) continue;
+
+            // compiled once per change, every filter run only creates a small session
+            SecretReplacer cleaner = cleaner(entry.getValue());
+            SecretReplacer smudger = smudger(entry.getValue());
+            FilterCommandRegistry.register(commandName(filePath, "clean"), (repository, in, out) -> new Command(in, out, cleaner));
+            FilterCommandRegistry.register(commandName(filePath, "smudge"), (repository, in, out) -> new Command(in, out, smudger));
+        }
+
+        for (String filePath : registered.keySet()) {
+            if (!hashes.containsKey(filePath)) {
+                unregister(filePath);
+            }
+        }
+        registered.clear();
+        registered.putAll(hashes);
+    }
+
+    public static synchronized void unregisterAll() {
+        for (String filePath : registered.keySet()) {
+            unregister(filePath);
+        }
+        registered.clear();
+    }
+
+    private static void unregister(String filePath) {
+        FilterCommandRegistry.unregister(commandName(filePath, "clean"));
+        FilterCommandRegistry.unregister(commandName(filePath, "smudge"));
+    }
+
+    private static String commandName(String filePath, String type) {
+        return Constants.BUILTIN_FILTER_PREFIX + filePath + "/" + type;
+    }
+
+    /**
+     * Secret values to their {{identifier}} placeholders.
+     */
+    public static SecretReplacer cleaner(List<GitSecret> secrets) {
+        Map<String, String> replacements = new LinkedHashMap<>();
+        for (GitSecret secret : secrets) {
+            replacements.putIfAbsent(secret.secret, "{{" + secret.identifier + "}}");
+        }
+        return new SecretReplacer(replacements);
+    }
+
+    /**
+     * {{identifier}} placeholders to their secret values.
+     */
+    public static SecretReplacer smudger(List<GitSecret> secrets) {
+        Map<String, String> replacements = new LinkedHashMap<>();
+        for (GitSecret secret : secrets) {
+            replacements.putIfAbsent("{{" + secret.identifier + "}}", secret.secret);
+        }
+        return new SecretReplacer(replacements);
+    }
+
+    private static class Command extends FilterCommand {
+        private final SecretReplacer.Session session;
+
+        private Command(InputStream in, OutputStream out, SecretReplacer replacer) {
+            super(in, out);
+            this.session = replacer.open(in, out);
+        }
+
+        @Override
+        public int run() throws IOException {
+            int read = session.process();
+            if (read == -1) {
+                in.close();
+                out.close();
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ml.konstanius.minecicd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Replaces any number of byte sequences in a single pass over a stream.
+ * <p>
+ * - The search strings are compiled into one trie, so the cost per byte does not grow with their number<br>
+ * - At every position the longest matching search string is replaced, matches never overlap and replaced bytes
+ * are not searched again<br>
+ * - Input is processed in a fixed size buffer, only the longest search string is kept as lookahead<br>
+ * - Immutable, one instance can be used by any number of threads through {@link #open(InputStream, OutputStream)}
+ * and {@link #occursIn(InputStream)}
+ */
+public class SecretReplacer {
+    private static final int BUFFER_SIZE = 8192;
+
+    private static class Node {
+        private byte[] keys = new byte[0];
+        private Node[] children = new Node[0];
+        private byte[] replacement;
+
+        private Node child(byte key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) return children[i];
+            }
+            return null;
+        }
+
+        private Node addChild(byte key) {
+            Node child = child(key);
+            if (child != null) return child;
+
+            child = new Node();
+            byte[] newKeys = new byte[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, keys.length);
+            System.arraycopy(children, 0, newChildren, 0, children.length);
+            newKeys[keys.length] = key;
+            newChildren[children.length] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+    private final boolean[] firstBytes = new boolean[256];
+    private final int maxLength;
+
+    /**
+     * @param replacements Search string to replacement, both encoded as UTF-8. Empty search strings are ignored,
+     *                     if a search string occurs more than once, the first replacement wins.
+     */
+    public SecretReplacer(Map<String, String> replacements) {
+        int longest = 1;
+        for (Map.Entry<String, String> entry : replacements.entrySet()) {
+            byte[] search = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (search.length == 0) continue;
+
+            Node node = root;
+            for (byte b : search) {
+                node = node.addChild(b);
+            }
+            if (node.replacement == null) {
+                node.replacement = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            }
+            firstBytes[search[0] & 0xFF] = true;
+            longest = Math.max(longest, search.length);
+        }
+        this.maxLength = longest;
+    }
+
+    /**
+     * Copies in to out with all replacements applied, closing neither stream.
+     */
+    public void replace(InputStream in, OutputStream out) throws IOException {
+        Session session = open(in, out);
+        while (session.process() != -1) {
+            // process until the input is exhausted
+        }
+    }
+
+    /**
+     * Whether any of the search strings occurs in the stream, reading only until the first occurrence.
+     */
+    public boolean occursIn(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE + maxLength];
+        int end = 0;
+        int read;
+        while ((read = in.read(buffer, end, buffer.length - end)) != -1 || end > 0) {
+            boolean eof = read == -1;
+            if (!eof) end += read;
+
+            // without the end of the input, only positions with a full lookahead can be decided
+            int limit = eof ? end : end - (maxLength - 1);
+            for (int position = 0; position < limit; position++) {
+                if (!firstBytes[buffer[position] & 0xFF]) continue;
+
+                Node node = root;
+                for (int i = position; i < end; i++) {
+                    node = node.child(buffer[i]);
+                    if (node == null) break;
+                    if (node.replacement != null) return true;
+                }
+            }
+            if (eof) return false;
+
+            int kept = end - Math.max(0, limit);
+            System.arraycopy(buffer, end - kept, buffer, 0, kept);
+            end = kept;
+        }
+        return false;
+    }
+
+    public Session open(InputStream in, OutputStream out) {
+        return new Session(in, out);
+    }
+
+    /**
+     * The state of one replacement run, processed one buffer at a time.
+     */
+    public class Session {
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE + maxLength];
+        private int start = 0;
+        private int end = 0;
+        private boolean eof = false;
+
+        private Session(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /**
+         * Reads and processes up to one buffer of input.
+         *
+         * @return The amount of bytes read, or -1 once all input is processed and written
+         */
+        public int process() throws IOException {
+            if (eof && start == end) {
+                return -1;
+            }
+
+            // keep the unprocessed lookahead, then fill the rest of the buffer
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                eof = true;
+                read = 0;
+            } else {
+                end += read;
+            }
+
+            // without the end of the input, only positions with a full lookahead can be decided
+            int limit = eof ? end : end - (maxLength - 1);
+            int copyFrom = start;
+            int position = start;
+            while (position < limit) {
+                if (!firstBytes[buffer[position] & 0xFF]) {
+                    position++;
+                    continue;
+                }
+
+                byte[] replacement = null;
+                int matched = 0;
+                Node node = root;
+                for (int i = position; i < end; i++) {
+                    node = node.child(buffer[i]);
+                    if (node == null) break;
+                    if (node.replacement != null) {
+                        replacement = node.replacement;
+                        matched = i - position + 1;
+                    }
+                }
+
+                if (replacement == null) {
+                    position++;
+                    continue;
+                }
+
+                out.write(buffer, copyFrom, position - copyFrom);
+                out.write(replacement);
+                position += matched;
+                copyFrom = position;
+            }
+            out.write(buffer, copyFrom, position - copyFrom);
+            start = position;
+
+            if (eof && start == end) {
+                return -1;
+            }
+            return read;
+        }
+    }
+}
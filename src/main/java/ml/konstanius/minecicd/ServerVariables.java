@@ -0,0 +1,168 @@
+package ml.konstanius.minecicd;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Per-server template variables from the untracked variables.yml in the server root.
+ * <p>
+ * - Every file listed under "files" gets the variables as additional {@link GitSecret}s<br>
+ * - They are applied through the same clean / smudge filters, so {{variable}} placeholders are rendered on checkout<br>
+ * - Secrets of the same name in the same file take precedence<br>
+ * - Cleaning turns every occurrence of a value back into its placeholder. To keep that from rewriting unrelated
+ * content, values must be at least {@link #MIN_LENGTH} characters, must not occur in the committed template outside
+ * of their placeholders, and commits adding placeholders to a template are refused ({@link #findAmbiguous(Repository)})
+ */
+public abstract class ServerVariables {
+    public static final int MIN_LENGTH = 4;
+
+    // template file path to its variables, as applied last
+    private static final Map<String, List<GitSecret>> templates = new HashMap<>();
+
+    public static HashMap<String, ArrayList<GitSecret>> applyTo(HashMap<String, ArrayList<GitSecret>> secrets) throws IOException, InvalidConfigurationException {
+        File variablesFile = new File(".", "variables.yml");
+        if (!variablesFile.exists()) {
+            try (InputStream in = Objects.requireNonNull(MineCICD.plugin.getResource("variables.yml"))) {
+                Files.copy(in, variablesFile.toPath());
+            }
+        }
+
+        FileConfiguration variablesConfig = new YamlConfiguration();
+        variablesConfig.load(variablesFile);
+
+        List<String> files = variablesConfig.getStringList("files");
+        ConfigurationSection variables = variablesConfig.getConfigurationSection("variables");
+        Map<String, List<GitSecret>> newTemplates = new HashMap<>();
+        if (files.isEmpty() || variables == null) {
+            setTemplates(newTemplates);
+            return secrets;
+        }
+
+        for (String filePath : files) {
+            if (filePath.contains("'")) {
+                throw new InvalidConfigurationException("Template file paths cannot contain the single quote character");
+            }
+
+            ArrayList<GitSecret> fileSecrets = secrets.computeIfAbsent(filePath, k -> new ArrayList<>());
+            for (String identifier : variables.getKeys(false)) {
+                String value = variables.getString(identifier);
+                if (value == null || value.isEmpty()) {
+                    throw new InvalidConfigurationException("Variable " + identifier + " must have a value");
+                }
+                if (value.length() < MIN_LENGTH) {
+                    throw new InvalidConfigurationException("Variable " + identifier + " must be at least " + MIN_LENGTH + " characters long");
+                }
+                if (identifier.contains("'") || value.contains("'")) {
+                    throw new InvalidConfigurationException("Variables and their names cannot contain the single quote character");
+                }
+                if (fileSecrets.stream().anyMatch(secret -> secret.identifier.equals(identifier))) {
+                    continue;
+                }
+                GitSecret variable = new GitSecret(identifier, filePath, value);
+                fileSecrets.add(variable);
+                newTemplates.computeIfAbsent(filePath, k -> new ArrayList<>()).add(variable);
+            }
+        }
+
+        if (GitUtils.activeRepoExists()) {
+            checkCommittedTemplates(newTemplates);
+        }
+        setTemplates(newTemplates);
+        return secrets;
+    }
+
+    private static synchronized void setTemplates(Map<String, List<GitSecret>> newTemplates) {
+        templates.clear();
+        templates.putAll(newTemplates);
+    }
+
+    /**
+     * A value that already occurs in the committed template would be turned into a placeholder by the next commit.
+     */
+    private static void checkCommittedTemplates(Map<String, List<GitSecret>> newTemplates) throws IOException, InvalidConfigurationException {
+        Repository repository = RepositoryManager.getRepository();
+        DirCache index = repository.readDirCache();
+        for (Map.Entry<String, List<GitSecret>> entry : newTemplates.entrySet()) {
+            DirCacheEntry indexEntry = index.getEntry(entry.getKey());
+            if (indexEntry == null) continue;
+
+            String template = read(repository, indexEntry.getObjectId());
+            for (GitSecret variable : entry.getValue()) {
+                if (template.contains(variable.secret)) {
+                    throw new InvalidConfigurationException("The value of variable " + variable.identifier + " occurs in " + entry.getKey()
+                            + " outside of {{" + variable.identifier + "}}, committing the file would replace it as well. "
+                            + "Put the placeholders into the repository first, or use a more specific value");
+                }
+            }
+        }
+    }
+
+    /**
+     * Staged templates that contain more placeholders of a variable than the committed version, i.e. where cleaning
+     * replaced values that were not rendered from a placeholder (or new uses of the value, which cannot be told apart).
+     *
+     * @return The affected paths, sorted
+     */
+    public static synchronized List<String> findAmbiguous(Repository repository) throws IOException {
+        List<String> ambiguous = new ArrayList<>();
+        if (templates.isEmpty()) {
+            return ambiguous;
+        }
+
+        DirCache index = repository.readDirCache();
+        ObjectId head = repository.resolve(Constants.HEAD + "^{tree}");
+        for (Map.Entry<String, List<GitSecret>> entry : new TreeMap<>(templates).entrySet()) {
+            DirCacheEntry indexEntry = index.getEntry(entry.getKey());
+            if (indexEntry == null) continue;
+
+            ObjectId committed = null;
+            if (head != null) {
+                try (TreeWalk walk = TreeWalk.forPath(repository, entry.getKey(), head)) {
+                    if (walk != null) committed = walk.getObjectId(0);
+                }
+            }
+            if (indexEntry.getObjectId().equals(committed)) continue;
+
+            String staged = read(repository, indexEntry.getObjectId());
+            String previous = committed == null ? "" : read(repository, committed);
+            for (GitSecret variable : entry.getValue()) {
+                String placeholder = "{{" + variable.identifier + "}}";
+                if (count(staged, placeholder) > count(previous, placeholder)) {
+                    MineCICD.log("Committing " + entry.getKey() + " would add {{" + variable.identifier + "}} placeholders", Level.WARNING);
+                    ambiguous.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return ambiguous;
+    }
+
+    private static int count(String content, String search) {
+        int count = 0;
+        for (int i = content.indexOf(search); i != -1; i = content.indexOf(search, i + search.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String read(Repository repository, ObjectId blob) throws IOException {
+        return new String(repository.open(blob, Constants.OBJ_BLOB).getBytes(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,198 @@
+package ml.konstanius.minecicd;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import static ml.konstanius.minecicd.MineCICD.log;
+
+/**
+ * Authenticates webhook requests before anything is parsed or the repository is touched.
+ * <p>
+ * - webhooks.allowed-ips: optional list of addresses / CIDR ranges, checked against the connection address<br>
+ * - webhooks.secret: if set, one of the following has to match, all compared in constant time:<br>
+ * &nbsp; GitLab: X-Gitlab-Token equals the secret<br>
+ * &nbsp; GitHub: X-Hub-Signature-256 is "sha256=" + hex HMAC-SHA256 of the body<br>
+ * &nbsp; Gitea / Gogs: X-Gitea-Signature / X-Gogs-Signature is the hex HMAC-SHA256 of the body<br>
+ * Requests without any of these headers are rejected after reading the headers only.
+ */
+public class WebhookAuthFilter extends Filter {
+    private final byte[] secret;
+    private final List<byte[][]> allowedRanges = new ArrayList<>();
+
+    public WebhookAuthFilter() {
+        String configuredSecret = Config.getString("webhooks.secret");
+        this.secret = configuredSecret == null || configuredSecret.isEmpty() ? null : configuredSecret.getBytes(StandardCharsets.UTF_8);
+
+        List<String> allowedIps = Config.getStringList("webhooks.allowed-ips");
+        if (allowedIps != null) {
+            for (String range : allowedIps) {
+                try {
+                    allowedRanges.add(parseRange(range.trim()));
+                } catch (UnknownHostException | IllegalArgumentException e) {
+                    log("Ignoring invalid entry \"" + range + "\" in webhooks.allowed-ips", Level.WARNING);
+                }
+            }
+        }
+
+        if (secret == null && allowedRanges.isEmpty()) {
+            log("The webhook listener is not protected, set webhooks.secret and / or webhooks.allowed-ips", Level.WARNING);
+        }
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if (!allowedRanges.isEmpty() && !isAllowed(exchange.getRemoteAddress().getAddress())) {
+            reject(exchange, 403, "address not allowed");
+            return;
+        }
+
+        if (secret != null) {
+            String token = exchange.getRequestHeaders().getFirst("X-Gitlab-Token");
+            String signature = exchange.getRequestHeaders().getFirst("X-Hub-Signature-256");
+            if (signature != null) {
+                signature = signature.startsWith("sha256=") ? signature.substring(7) : null;
+            } else {
+                signature = exchange.getRequestHeaders().getFirst("X-Gitea-Signature");
+                if (signature == null) {
+                    signature = exchange.getRequestHeaders().getFirst("X-Gogs-Signature");
+                }
+            }
+
+            if (token != null) {
+                if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), secret)) {
+                    reject(exchange, 401, "invalid token");
+                    return;
+                }
+            } else if (signature != null) {
+                byte[] expected = decodeHex(signature);
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    reject(exchange, 413, "payload too large");
+                    return;
+                }
+                if (expected == null || !MessageDigest.isEqual(expected, hmac(body))) {
+                    reject(exchange, 401, "invalid signature");
+                    return;
+                }
+                exchange.setStreams(new ByteArrayInputStream(body), null);
+            } else {
+                reject(exchange, 401, "missing signature");
+                return;
+            }
+        }
+
+        chain.doFilter(exchange);
+    }
+
+    @Override
+    public String description() {
+        return "Authenticates MineCICD webhook requests";
+    }
+
+    private static void reject(HttpExchange exchange, int code, String reason) throws IOException {
+        log("Rejected webhook request from " + exchange.getRemoteAddress() + ": " + reason, Level.WARNING);
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+    }
+
+    private boolean isAllowed(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        for (byte[][] range : allowedRanges) {
+            byte[] network = range[0];
+            byte[] mask = range[1];
+            if (network.length != bytes.length) continue;
+
+            boolean matches = true;
+            for (int i = 0; i < bytes.length; i++) {
+                if ((bytes[i] & mask[i]) != network[i]) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses "address" or "address/prefix" into the masked network address and the mask.
+     */
+    private static byte[][] parseRange(String range) throws UnknownHostException {
+        String address = range;
+        int prefix = -1;
+        int slash = range.indexOf('/');
+        if (slash != -1) {
+            address = range.substring(0, slash);
+            prefix = Integer.parseInt(range.substring(slash + 1));
+        }
+
+        byte[] network = InetAddress.getByName(address).getAddress();
+        if (prefix == -1) prefix = network.length * 8;
+        if (prefix < 0 || prefix > network.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefix);
+        }
+
+        byte[] mask = new byte[network.length];
+        for (int i = 0; i < mask.length; i++) {
+            int bits = Math.max(0, Math.min(8, prefix - i * 8));
+            mask[i] = (byte) (0xFF << (8 - bits));
+            network[i] &= mask[i];
+        }
+        return new byte[][]{network, mask};
+    }
+
+    private byte[] hmac(byte[] body) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(body);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HMAC-SHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Reads the entire body, or returns null if it is larger than {@link WebhookPayload#MAX_BYTES}.
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (out.size() > WebhookPayload.MAX_BYTES) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decodeHex(String hex) {
+        hex = hex.trim();
+        if (hex.length() % 2 != 0) return null;
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1) return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
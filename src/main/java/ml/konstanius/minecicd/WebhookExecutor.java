@@ -0,0 +1,131 @@
+package ml.konstanius.minecicd;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+import static ml.konstanius.minecicd.MineCICD.log;
+
+/**
+ * Executor of the webhook HttpServer.
+ * <p>
+ * - Requests run on virtual threads (Java 21+) or on a small bounded pool, never on the dispatcher thread<br>
+ * - At most webhooks.max-connections requests are handled at once, further ones are answered with 429
+ * by {@link RejectFilter} on a small separate pool, before their body is read. Rejects queue up on that pool instead
+ * of being dropped, as an exchange the executor refuses is not closed by every JDK, and each of them only takes
+ * until its headers are read (webhooks.request-timeout at most)<br>
+ * - Reading and answering a request is limited by webhooks.request-timeout
+ */
+public class WebhookExecutor implements Executor {
+    private static final ThreadLocal<Boolean> rejected = new ThreadLocal<>();
+    private static final int REJECT_THREADS = 2;
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+    private final ThreadPoolExecutor rejectPool = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "MineCICD-Webhook-Reject");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private WebhookExecutor(ExecutorService delegate, int maxConnections) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConnections);
+        rejectPool.allowCoreThreadTimeOut(true);
+    }
+
+    public static WebhookExecutor create() {
+        applyTimeouts();
+
+        int maxConnections = Math.max(1, Config.getInt("webhooks.max-connections"));
+        ExecutorService delegate = createVirtualThreadExecutor();
+        if (delegate == null) {
+            int threads = Math.max(1, Config.getInt("webhooks.threads"));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "MineCICD-Webhook");
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            delegate = pool;
+        }
+        return new WebhookExecutor(delegate, maxConnections);
+    }
+
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The JDK HttpServer only reads its timeouts from system properties, once per JVM.
+     * Properties that were already set on the command line are left alone.
+     */
+    private static void applyTimeouts() {
+        String timeout = String.valueOf(Math.max(1, Config.getInt("webhooks.request-timeout")));
+        for (String property : new String[]{"sun.net.httpserver.maxReqTime", "sun.net.httpserver.maxRspTime", "sun.net.httpserver.idleInterval"}) {
+            if (System.getProperty(property) == null) {
+                System.setProperty(property, timeout);
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!permits.tryAcquire()) {
+            // reading the request line and headers blocks, so rejects never run on the dispatcher thread
+            rejectPool.execute(() -> {
+                rejected.set(Boolean.TRUE);
+                try {
+                    command.run();
+                } finally {
+                    rejected.remove();
+                }
+            });
+            return;
+        }
+
+        try {
+            delegate.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        delegate.shutdownNow();
+        rejectPool.shutdownNow();
+    }
+
+    public static class RejectFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (rejected.get() != null) {
+                log("Rejecting webhook request from " + exchange.getRemoteAddress() + ", too many connections", Level.WARNING);
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                exchange.sendResponseHeaders(429, -1);
+                exchange.close();
+                return;
+            }
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "Rejects requests exceeding the MineCICD webhook connection limit";
+        }
+    }
+}
@@ -13,16 +13,19 @@ import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.json.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 
 import static ml.konstanius.minecicd.MineCICD.log;
@@ -30,255 +33,254 @@ import static ml.konstanius.minecicd.MineCICD.log;
 public class WebhookHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange t) throws IOException {
-        try (final Git git = Git.open(new File("."))) {
+        try {
             log("Received webhook trigger", Level.INFO);
-            StringBuilder sb = new StringBuilder();
-            InputStream ios = t.getRequestBody();
-            int i;
-            int max = 512000;
-            while ((i = ios.read()) != -1 && max-- > 0) {
-                sb.append((char) i);
+
+            String event = getEvent(t);
+            if (event != null && !event.equalsIgnoreCase("push") && !event.equalsIgnoreCase("Push Hook")) {
+                respond(t, 200, "Ignored");
+                log("Webhook for " + event + " event ignored, only push events are deployed", Level.INFO);
+                return;
+            }
+
+            String expectedRef = "refs/heads/" + Config.getString("git.branch");
+            WebhookPayload payload;
+            try {
+                payload = WebhookPayload.read(t.getRequestBody(), expectedRef);
+            } catch (IOException e) {
+                respond(t, 400, "Invalid payload");
+                log("Webhook failed to run due to invalid contents: " + e.getMessage(), Level.SEVERE);
+                return;
+            }
+
+            if (payload.getRef() == null) {
+                respond(t, 200, "Ignored");
+                log("Webhook without a ref ignored, only push events are deployed", Level.INFO);
+                return;
+            }
+
+            if (!payload.getRef().equals(expectedRef)) {
+                respond(t, 200, "Ignored");
+                log("Webhook received for branch " + payload.getRef() + " but expected " + expectedRef, Level.INFO);
+                return;
             }
 
-            if (max <= 0) {
-                t.sendResponseHeaders(400, 0);
-                log("Webhook failed to run due to invalid contents", Level.SEVERE);
+            if (OperationQueue.isSaturated()) {
+                t.getResponseHeaders().set("Retry-After", "30");
+                respond(t, 503, "Deployment queue is full");
+                log("Webhook rejected, too many operations are queued", Level.WARNING);
                 return;
             }
 
-            String response = "Response";
-            t.sendResponseHeaders(200, response.length());
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            respond(t, 200, "Response");
+            log("Webhook for " + payload.getRef() + " with " + payload.getCommits().size() + " commit(s), new tip " + payload.getAfter(), Level.INFO);
+            DeployCoalescer.request(getDeliveryId(t));
+        } finally {
+            t.close();
+        }
+    }
+
+    private static void respond(HttpExchange t, int code, String response) throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        t.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * The event type sent by the git host, or null if it sent none.
+     */
+    private static String getEvent(HttpExchange t) {
+        for (String header : new String[]{"X-GitHub-Event", "X-Gitea-Event", "X-Gogs-Event", "X-Gitlab-Event"}) {
+            String value = t.getRequestHeaders().getFirst(header);
+            if (value != null && !value.isEmpty()) {
+                return value;
+            }
+        }
+        return null;
+    }
 
-            JSONObject json = new JSONObject(sb.toString());
+    private static String getDeliveryId(HttpExchange t) {
+        for (String header : new String[]{"X-GitHub-Delivery", "X-Gitea-Delivery", "X-Gogs-Delivery", "X-Gitlab-Event-UUID"}) {
+            String value = t.getRequestHeaders().getFirst(header);
+            if (value != null && !value.isEmpty()) {
+                return value;
+            }
+        }
+        return null;
+    }
 
-            String branch = git.getRepository().getBranch();
-            if (!json.getString("ref").equals("refs/heads/" + branch)) {
-                log("Webhook received for branch " + json.getString("ref") + " but expected refs/heads/" + branch, Level.INFO);
+    /**
+     * Pulls the configured branch and applies the CICD directives of the latest commit.
+     * Has to run on the {@link OperationQueue}, used by both the webhook listener and the remote poller.
+     */
+    public static void deploy() {
+        String bar = MineCICD.addBar(Messages.getCleanMessage("bossbar-webhook-trigger", true), BarColor.BLUE, BarStyle.SOLID);
+        try (Git git = RepositoryManager.git()) {
+            String oldHead = GitUtils.getCurrentRevision();
+            boolean updated = GitUtils.pull();
+            if (!updated) {
+                MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-webhook-no-changes", true), BarColor.GREEN, BarStyle.SOLID);
+                MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
                 return;
             }
+            String newHead = GitUtils.getCurrentRevision();
+
+            boolean allowScripts = Config.getBoolean("webhooks.allow-scripts");
+
+            ObjectId oldHeadId = git.getRepository().resolve(oldHead);
+            ObjectId newHeadId = git.getRepository().resolve(newHead);
+
+            DeploymentPlan plan = DeploymentPlan.fromRange(oldHeadId, newHeadId);
+            log("Deploying " + plan.commitCount + " commit(s)", Level.INFO);
+
+            RevCommit latest = git.log().setMaxCount(1).call().iterator().next();
+            PersonIdent author = latest.getAuthorIdent();
+            String name = author.getName();
+            Date cal = author.getWhen();
+
+            List<DiffEntry> diffs = GitUtils.getChangesBetween(git, oldHeadId, newHeadId);
+            if (Config.getBoolean("auto-reload.enabled")) {
+                plan.addChangedPaths(diffs);
+            }
+
+            StringBuilder changesBuilder = new StringBuilder();
+            for (DiffEntry diff : diffs) {
+                DiffEntry.ChangeType type = diff.getChangeType();
+                String path = diff.getNewPath();
+                switch (type) {
+                    case ADD:
+                        changesBuilder.append("&a+ ").append(path).append("\n");
+                        break;
+                    case DELETE:
+                        changesBuilder.append("&c- ").append(path).append("\n");
+                        break;
+                    case MODIFY:
+                        changesBuilder.append("&b# ").append(path).append("\n");
+                        break;
+                    case COPY:
+                    case RENAME:
+                        break;
+                }
+            }
+            String changes = changesBuilder.toString();
+            if (changes.isEmpty()) {
+                changes = "&7No changes";
+            } else {
+                changes = changes.substring(0, changes.length() - 1);
+            }
+
+            String commitMsg = latest.getFullMessage().trim();
+            if (commitMsg.endsWith("\n")) {
+                commitMsg = commitMsg.substring(0, commitMsg.length() - 1);
+            }
 
-            Bukkit.getScheduler().runTaskAsynchronously(MineCICD.plugin, () -> {
-                while (MineCICD.busyLock) {
+            String finalCommitMsg = commitMsg;
+            String finalChanges = changes;
+            String rawMsg = Messages.getMessage("webhook-event", false, new HashMap<String, String>() {{
+                put("author", name);
+                put("date", new java.text.SimpleDateFormat("dd.MM.yyyy HH:mm:ss").format(cal));
+                put("message", finalCommitMsg);
+                put("changes", finalChanges);
+            }});
+
+            BaseComponent[] components = Messages.messageToComponent(rawMsg);
+
+            for (Player p : Bukkit.getOnlinePlayers()) {
+                if (p.hasPermission("minecicd.notify")) {
                     try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
+                        p.sendMessage(components);
+                    } catch (Exception e) {
                         MineCICD.logError(e);
                     }
                 }
+            }
 
-                String bar = MineCICD.addBar(Messages.getCleanMessage("bossbar-webhook-trigger", true), BarColor.BLUE, BarStyle.SOLID);
-                try {
-                    MineCICD.busyLock = true;
-
-                    String oldHead = GitUtils.getCurrentRevision();
-                    boolean updated = GitUtils.pull();
-                    if (!updated) {
-                        MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-webhook-no-changes", true), BarColor.GREEN, BarStyle.SOLID);
-                        MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
-                        return;
-                    }
-                    String newHead = GitUtils.getCurrentRevision();
-
-                    boolean allowIndividualReload = Config.getBoolean("webhooks.allow-individual-reload");
-                    boolean allowGlobalReload = Config.getBoolean("webhooks.allow-global-reload");
-                    boolean allowRestart = Config.getBoolean("webhooks.allow-restart");
-                    boolean allowScripts = Config.getBoolean("webhooks.allow-scripts");
-
-                    RevCommit latestCommit = git.log().setMaxCount(1).call().iterator().next();
-
-                    String[] lines = latestCommit.getFullMessage().split("\n");
-                    ArrayList<String> individualReload = new ArrayList<>();
-                    ArrayList<String> commands = new ArrayList<>();
-                    ArrayList<String> scripts = new ArrayList<>();
-                    boolean globalReload = false;
-                    boolean restart = false;
-                    for (String line : lines) {
-                        if (line.startsWith("CICD")) {
-                            String command = line.substring(4).trim();
-                            if (command.startsWith("reload") && allowIndividualReload) {
-                                String plugin = command.substring(7).trim();
-                                individualReload.add(plugin);
-                            } else if (command.equals("global-reload")) {
-                                globalReload = allowGlobalReload;
-                            } else if (command.equals("restart")) {
-                                restart = allowRestart;
-                            } else if (command.startsWith("run")) {
-                                String cmd = command.substring(4).trim();
-                                commands.add(cmd);
-                            } else if (command.startsWith("script")) {
-                                String script = command.substring(7).trim();
-                                scripts.add(script);
-                            } else {
-                                log("Unknown command in CICD commit message " + command, Level.WARNING);
-                            }
-                        }
-                    }
-
-                    RevCommit latest = git.log().setMaxCount(1).call().iterator().next();
-                    PersonIdent author = latest.getAuthorIdent();
-                    String name = author.getName();
-                    Date cal = author.getWhen();
+            MainThreadScheduler.Tracker tracker = new MainThreadScheduler.Tracker();
+            List<CompletableFuture<Void>> mainThreadWork = new ArrayList<>();
+            for (String cmd : plan.commands) {
+                mainThreadWork.add(MainThreadScheduler.dispatch(tracker, cmd));
+            }
 
-                    ObjectId oldHeadId = git.getRepository().resolve(oldHead);
-                    ObjectId newHeadId = git.getRepository().resolve(newHead);
+            for (Map.Entry<String, List<String>> entry : plan.reloadCommands.entrySet()) {
+                log("Reloading " + entry.getKey() + " using its configured commands", Level.INFO);
+                for (String cmd : entry.getValue()) {
+                    mainThreadWork.add(MainThreadScheduler.dispatch(tracker, cmd));
+                }
+            }
 
-                    List<DiffEntry> diffs = GitUtils.getChangesBetween(git, oldHeadId, newHeadId);
+            if (allowScripts && !plan.scripts.isEmpty()) {
+                Set<String> changedPaths = new HashSet<>();
+                for (DiffEntry diff : diffs) {
+                    changedPaths.add(diff.getOldPath());
+                    changedPaths.add(diff.getNewPath());
+                }
+                changedPaths.remove(DiffEntry.DEV_NULL);
 
-                    StringBuilder changesBuilder = new StringBuilder();
-                    for (DiffEntry diff : diffs) {
-                        DiffEntry.ChangeType type = diff.getChangeType();
-                        String path = diff.getNewPath();
-                        switch (type) {
-                            case ADD:
-                                changesBuilder.append("&a+ ").append(path).append("\n");
-                                break;
-                            case DELETE:
-                                changesBuilder.append("&c- ").append(path).append("\n");
-                                break;
-                            case MODIFY:
-                                changesBuilder.append("&b# ").append(path).append("\n");
-                                break;
-                            case COPY:
-                            case RENAME:
-                                break;
-                        }
-                    }
-                    String changes = changesBuilder.toString();
-                    if (changes.isEmpty()) {
-                        changes = "&7No changes";
-                    } else {
-                        changes = changes.substring(0, changes.length() - 1);
+                for (String script : plan.scripts) {
+                    try {
+                        Script.run(script, changedPaths);
+                    } catch (Exception e) {
+                        MineCICD.logError(e);
                     }
+                }
+            }
 
-                    String commitMsg = latest.getFullMessage().trim();
-                    if (commitMsg.endsWith("\n")) {
-                        commitMsg = commitMsg.substring(0, commitMsg.length() - 1);
-                    }
+            if (!plan.reloads.isEmpty()) {
+                PluginResolver.refreshIndex();
+                for (String plugin : plan.reloads) {
+                    Plugin pl = PluginResolver.findLoaded(plugin);
 
-                    String finalCommitMsg = commitMsg;
-                    String finalChanges = changes;
-                    String rawMsg = Messages.getMessage("webhook-event", false, new HashMap<String, String>() {{
-                        put("author", name);
-                        put("date", new java.text.SimpleDateFormat("dd.MM.yyyy HH:mm:ss").format(cal));
-                        put("message", finalCommitMsg);
-                        put("changes", finalChanges);
-                    }});
-
-                    BaseComponent[] components = Messages.messageToComponent(rawMsg);
-
-                    for (Player p : Bukkit.getOnlinePlayers()) {
-                        if (p.hasPermission("minecicd.notify")) {
-                            try {
-                                p.sendMessage(components);
-                            } catch (Exception e) {
-                                MineCICD.logError(e);
+                    if (pl == null) {
+                        for (Plugin p : Bukkit.getPluginManager().getPlugins()) {
+                            if (p.getName().toLowerCase().startsWith(plugin.toLowerCase())) {
+                                pl = p;
+                                break;
                             }
                         }
-                    }
 
-                    for (String cmd : commands) {
-                        try {
-                            Bukkit.getScheduler().runTask(MineCICD.plugin, () -> Bukkit.dispatchCommand(Bukkit.getConsoleSender(), cmd));
-                        } catch (Exception e) {
-                            MineCICD.logError(e);
+                        if (pl == null) {
+                            log("Could not find plugin " + plugin + " to reload", Level.SEVERE);
+                            continue;
                         }
                     }
 
-                    if (allowScripts) {
-                        for (String script : scripts) {
-                            try {
-                            Script.run(script);
-                            } catch (Exception e) {
-                                MineCICD.logError(e);
-                            }
-                        }
+                    String pluginName = pl.getName();
+                    if (PluginResolver.isProtected(pluginName)) {
+                        log("Not reloading " + pluginName + ", MineCICD depends on it", Level.WARNING);
+                        continue;
                     }
 
-                    if (!individualReload.isEmpty()) {
-                        for (String plugin : individualReload) {
-                            Plugin pl = null;
-
-                            for (Plugin p : Bukkit.getPluginManager().getPlugins()) {
-                                if (p.getName().equalsIgnoreCase(plugin)) {
-                                    pl = p;
-                                    break;
-                                }
-                            }
-
-                            if (pl == null) {
-                                for (Plugin p : Bukkit.getPluginManager().getPlugins()) {
-                                    if (p.getName().toLowerCase().startsWith(plugin.toLowerCase())) {
-                                        pl = p;
-                                        break;
-                                    }
-                                }
-
-                                if (pl == null) {
-                                    log("Could not find plugin " + plugin + " to reload", Level.SEVERE);
-                                    continue;
-                                }
-                            }
+                    // unload and load are separate pieces of work, so they may end up in different ticks
+                    mainThreadWork.add(MainThreadScheduler.dispatch(tracker, "plugman unload " + pluginName));
+                    mainThreadWork.add(MainThreadScheduler.dispatch(tracker, "plugman load " + pluginName));
+                }
+            }
 
-                            try {
-                                MineCICD.plugin.getServer().getScheduler().callSyncMethod(MineCICD.plugin, () -> {
-                                    String pluginStripped = plugin;
-                                    // up until first "-" or " " or "." or "_"
-                                    int index = pluginStripped.indexOf("-");
-                                    if (index == -1) index = pluginStripped.indexOf(" ");
-                                    if (index == -1) index = pluginStripped.indexOf("_");
-                                    if (index == -1) index = pluginStripped.indexOf(".");
-                                    if (index != -1) {
-                                        pluginStripped = pluginStripped.substring(0, index);
-                                    }
-
-                                    String command = "plugman unload " + pluginStripped;
-                                    try {
-                                        MineCICD.plugin.getServer().dispatchCommand(MineCICD.plugin.getServer().getConsoleSender(), command);
-                                    } catch (Exception e) {
-                                        MineCICD.log("Failed to unload plugin " + pluginStripped, Level.SEVERE);
-                                        MineCICD.logError(e);
-                                    }
-
-                                    try {
-                                        Thread.sleep(50);
-                                    } catch (InterruptedException e) {
-                                        MineCICD.logError(e);
-                                    }
-
-                                    command = "plugman load " + pluginStripped;
-                                    try {
-                                        MineCICD.plugin.getServer().dispatchCommand(MineCICD.plugin.getServer().getConsoleSender(), command);
-                                    } catch (Exception e) {
-                                        MineCICD.log("Failed to load plugin " + pluginStripped, Level.SEVERE);
-                                        MineCICD.logError(e);
-                                    }
-                                    return null;
-                                }).get();
-                            } catch (Exception e) {
-                                MineCICD.logError(e);
-                            }
-                        }
-                    }
+            for (CompletableFuture<Void> work : mainThreadWork) {
+                try {
+                    work.get();
+                } catch (ExecutionException e) {
+                    MineCICD.log("Deployment action failed: " + e.getCause().getMessage(), Level.SEVERE);
+                }
+            }
+            if (!mainThreadWork.isEmpty()) {
+                log("Deployment used " + tracker.getTicks() + " tick(s) and " + tracker.getMillis() + "ms of main thread time", Level.INFO);
+            }
 
-                    if (restart) {
-                        Bukkit.shutdown();
-                    } else if (globalReload) {
-                        Bukkit.reload();
-                    }
+            if (plan.restart) {
+                Bukkit.shutdown();
+            } else if (plan.globalReload) {
+                Bukkit.reload();
+            }
 
-                    MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-webhook-success", true), BarColor.GREEN, BarStyle.SOLID);
-                    MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
-                } catch (Exception e) {
-                    MineCICD.logError(e);
-                    MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-webhook-failed", true), BarColor.RED, BarStyle.SEGMENTED_12);
-                    MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
-                } finally {
-                    MineCICD.busyLock = false;
-                }
-            });
+            MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-webhook-success", true), BarColor.GREEN, BarStyle.SOLID);
+            MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
+        } catch (Exception e) {
+            MineCICD.logError(e);
+            MineCICD.changeBar(bar, Messages.getCleanMessage("bossbar-webhook-failed", true), BarColor.RED, BarStyle.SEGMENTED_12);
+            MineCICD.removeBar(bar, Config.getInt("bossbar.duration"));
         }
     }
 }
@@ -0,0 +1,289 @@
+package ml.konstanius.minecicd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of a push event payload (GitHub / GitLab / Gitea) MineCICD needs: ref, after and the commit IDs.
+ * <p>
+ * The body is scanned as a stream instead of being parsed into a document, everything else is skipped.
+ * Reading stops as soon as the ref turns out to be a different branch.
+ */
+public class WebhookPayload {
+    public static final int MAX_BYTES = 512000;
+
+    private String ref;
+    private String after;
+    private final List<String> commits = new ArrayList<>();
+
+    private final Reader reader;
+    private int peeked = -2;
+
+    private WebhookPayload(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return The pushed ref, or null if the payload is not a push event (e.g. a ping)
+     */
+    public String getRef() {
+        return ref;
+    }
+
+    public String getAfter() {
+        return after;
+    }
+
+    public List<String> getCommits() {
+        return commits;
+    }
+
+    /**
+     * Scans the payload until it is complete, or until the ref is known not to be expectedRef.
+     *
+     * @throws IOException if the payload is malformed or larger than {@link #MAX_BYTES}
+     */
+    public static WebhookPayload read(InputStream in, String expectedRef) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(new LimitedInputStream(in, MAX_BYTES), StandardCharsets.UTF_8));
+        WebhookPayload payload = new WebhookPayload(reader);
+        payload.scan(expectedRef);
+        return payload;
+    }
+
+    private void scan(String expectedRef) throws IOException {
+        expect('{');
+        if (peekNonWhitespace() == '}') return;
+
+        while (true) {
+            String key = readString();
+            expect(':');
+            switch (key) {
+                case "ref":
+                    ref = readStringOrSkip();
+                    if (ref != null && expectedRef != null && !ref.equals(expectedRef)) {
+                        return;
+                    }
+                    break;
+                case "after":
+                    after = readStringOrSkip();
+                    break;
+                case "commits":
+                    readCommits();
+                    break;
+                default:
+                    skipValue();
+                    break;
+            }
+
+            int c = nextNonWhitespace();
+            if (c == '}') return;
+            if (c != ',') throw syntaxError(c);
+        }
+    }
+
+    private void readCommits() throws IOException {
+        if (peekNonWhitespace() != '[') {
+            skipValue();
+            return;
+        }
+        expect('[');
+        if (peekNonWhitespace() == ']') {
+            next();
+            return;
+        }
+
+        while (true) {
+            if (peekNonWhitespace() == '{') {
+                expect('{');
+                if (peekNonWhitespace() == '}') {
+                    next();
+                } else {
+                    while (true) {
+                        String key = readString();
+                        expect(':');
+                        if (key.equals("id")) {
+                            String id = readStringOrSkip();
+                            if (id != null) commits.add(id);
+                        } else {
+                            skipValue();
+                        }
+
+                        int c = nextNonWhitespace();
+                        if (c == '}') break;
+                        if (c != ',') throw syntaxError(c);
+                    }
+                }
+            } else {
+                skipValue();
+            }
+
+            int c = nextNonWhitespace();
+            if (c == ']') return;
+            if (c != ',') throw syntaxError(c);
+        }
+    }
+
+    private String readStringOrSkip() throws IOException {
+        if (peekNonWhitespace() == '"') {
+            return readString();
+        }
+        skipValue();
+        return null;
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = next();
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append((char) c);
+                continue;
+            }
+
+            c = next();
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < 4; i++) {
+                        hex[i] = (char) next();
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid unicode escape in payload");
+                    }
+                    break;
+                default:
+                    sb.append((char) c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Skips any value without keeping it, nested objects and arrays are only counted.
+     */
+    private void skipValue() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            skipString();
+            return;
+        }
+
+        if (c != '{' && c != '[') {
+            // number, true, false, null
+            while (true) {
+                c = peek();
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) return;
+                next();
+            }
+        }
+
+        int depth = 0;
+        do {
+            c = peek();
+            if (c == '"') {
+                skipString();
+                continue;
+            }
+            next();
+            if (c == '{' || c == '[') depth++;
+            else if (c == '}' || c == ']') depth--;
+        } while (depth > 0);
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while (true) {
+            int c = next();
+            if (c == '"') return;
+            if (c == '\\') next();
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = nextNonWhitespace();
+        if (c != expected) throw syntaxError(c);
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while (Character.isWhitespace(peek())) {
+            next();
+        }
+        return peek();
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        peekNonWhitespace();
+        return next();
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = reader.read();
+        }
+        if (peeked == -1) {
+            throw new EOFException("Unexpected end of payload");
+        }
+        return peeked;
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        peeked = -2;
+        return c;
+    }
+
+    private static IOException syntaxError(int c) {
+        return new IOException("Unexpected character '" + (char) c + "' in payload");
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && --remaining < 0) {
+                throw new IOException("Payload exceeds " + MAX_BYTES + " bytes");
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                remaining -= read;
+                if (remaining < 0) {
+                    throw new IOException("Payload exceeds " + MAX_BYTES + " bytes");
+                }
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+# This is an example Script for running actions using WebHook Pushes
+# Comments are defined with a # at the beginning of the line
+# Running commands on the server console does not require the / at the beginning of the line
+# Running commands in the system shell is done by adding "! " at the beginning of the line
+# Consider the operating system when writing system shell commands (Available commands, syntax, and file separators may differ)
+say Hello World!
+! echo Hello World!
+# Lines can be limited to deployments that changed certain paths with "@changed <glob>[,<glob>] " in front of them
+# "**" matches any number of directories, "*" and "?" match within one file or directory name
+# Running the script manually (/minecicd script) always runs every line
+@changed plugins/Essentials/**,plugins/EssentialsX*.jar say Essentials was changed!
+# Lines can be grouped into stages with "[stage <name>]" or "[stage <name> after <stage>[,<stage>]]"
+# A stage starts as soon as all stages it comes after succeeded, independent stages run at the same time
+# Stages containing console commands never run at the same time as each other
+# Lines before the first stage form their own stage
+[stage textures]
+! echo Building textures
+[stage models]
+! echo Building models
+[stage announce after textures,models]
+say Resource packs are ready!